@@ -0,0 +1,447 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * BTAggregates answers count, min and max queries of a B+ tree from the
+ * index alone. Min and max walk the leftmost and rightmost paths. A count
+ * goes down both bounds of the range and adds the number of entries below
+ * every child that lies wholly inside the range, so it reads the pages of
+ * the two paths instead of the leaves between them. Rank and select go
+ * down a single path the same way, by key or by position.
+ *
+ * The number of entries below a page is kept in memory by page id, the
+ * records of the index pages have no room for it; the count of the root is
+ * the entry count of the header page. An insert or a delete reports its way
+ * down from the root: the counts of those pages move by the entry it added
+ * or removed, and only the pages it split lose theirs. Any other operation
+ * that changes the tree drops the counts of every page it pinned: the pages
+ * it changed and their ancestors are all on its way down from the root.
+ *
+ * The cache starts empty when the file is opened: the first count, rank or
+ * select reads whole subtrees, as many pages as the range covers, to fill it.
+ * Afterwards a query reads the pages of its paths and recounts only the
+ * pages split or merged since, from the counts of their children.
+ *
+ * @author MaTrix
+ *
+ */
+class BTAggregates implements GlobalConst
+{
+	private BTreeFile btree;
+
+	// entries below a page, by page id
+	private Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+	// pages pinned by the current operation
+	private Set<Integer> touched = new HashSet<Integer>();
+	private boolean inOperation;
+	private boolean changed; // the current operation changed a page
+	// the way down to the entry the current operation inserted or deleted, if it reported one
+	private List<Integer> path = new ArrayList<Integer>();
+	private Set<Integer> split = new HashSet<Integer>(); // pages of the path that were split
+	private int delta; // entries added by the current operation, negative if removed
+
+	/**
+	 * a child of an index page with the bounds of its keys, null for no bound
+	 */
+	private static class Child
+	{
+		PageId pageId;
+		KeyClass low;
+		KeyClass high;
+
+		Child(PageId pageId, KeyClass low, KeyClass high)
+		{
+			this.pageId = pageId;
+			this.low = low;
+			this.high = high;
+		}
+	}
+
+	BTAggregates(BTreeFile btree)
+	{
+		this.btree = btree;
+	}
+
+	void begin()
+	{
+		inOperation = true;
+	}
+
+	void pinned(int pid)
+	{
+		if (inOperation)	touched.add(pid);
+	}
+
+	void changed(int pid)
+	{
+		// a change outside an operation has no path to drop
+		if (inOperation)	changed = true;
+		else counts.clear();
+	}
+
+	/**
+	 * the current operation went down through the page to its entry
+	 */
+	void descended(int pid)
+	{
+		if (inOperation)	path.add(pid);
+	}
+
+	/**
+	 * the current operation moved the entries of a page of its path to a new page
+	 */
+	void split(int pid)
+	{
+		if (inOperation)	split.add(pid);
+	}
+
+	/**
+	 * @param entries - entries the current operation added, negative if it removed some. Input parameter.
+	 */
+	void counted(int entries)
+	{
+		if (inOperation)	delta += entries;
+	}
+
+	/**
+	 * the page left the tree, its id may come back as another page
+	 */
+	void forget(int pid)
+	{
+		counts.remove(pid);
+	}
+
+	void end()
+	{
+		if (!path.isEmpty())
+		{
+			// the other pages it changed kept their counts: a new sibling has none
+			// yet, the neighbours of a leaf only changed their links
+			for (int pid : path)
+			{
+				Integer count = counts.get(pid);
+				if (count != null)	counts.put(pid, count + delta);
+			}
+			counts.keySet().removeAll(split);
+		}
+		else if (changed)	counts.keySet().removeAll(touched);
+		reset();
+	}
+
+	/**
+	 * the current operation failed: drop the counts of every page it pinned
+	 */
+	void abort()
+	{
+		counts.keySet().removeAll(touched);
+		reset();
+	}
+
+	private void reset()
+	{
+		touched.clear();
+		path.clear();
+		split.clear();
+		delta = 0;
+		inOperation = false;
+		changed = false;
+	}
+
+	void clear()
+	{
+		counts.clear();
+	}
+
+	/**
+	 * number of entries with lo <= key <= hi. Reads the pages of the paths of
+	 * both bounds when the counts below them are cached, the whole subtrees
+	 * inside the range when they are not (see the class comment).
+	 * @param lo - lower bound, null for no lower bound. Input parameter.
+	 * @param hi - upper bound, null for no upper bound. Input parameter.
+	 */
+	int count(KeyClass lo, KeyClass hi) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		if (lo != null && hi != null && BT.keyCompare(lo, hi) > 0)	return 0;
+		return count(new Child(btree.getHeaderPage().get_rootId(), null, null), lo, hi);
+	}
+
+	private int count(Child node, KeyClass lo, KeyClass hi) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		if ((lo == null || (node.low != null && BT.keyCompare(lo, node.low) <= 0))
+				&& (hi == null || (node.high != null && BT.keyCompare(node.high, hi) <= 0)))
+			return subtreeCount(node.pageId);
+
+		HFPage page = new HFPage();
+		btree.pinPageForScan(node.pageId, page);
+		int keyType = btree.getHeaderPage().get_keyType();
+		RID iteratorRecord = new RID();
+		if (page.getType() != NodeType.INDEX)
+		{
+			BTLeafPage leafPage = new BTLeafPage(page, keyType);
+			int count = 0;
+			for (KeyDataEntry entry = leafPage.getFirst(iteratorRecord); entry != null; entry = leafPage.getNext(iteratorRecord))
+			{
+				if (lo != null && BT.keyCompare(entry.key, lo) < 0)	continue;
+				if (hi != null && BT.keyCompare(entry.key, hi) > 0)	break;
+				count++;
+			}
+			btree.unpinPage(node.pageId, false);
+			return count;
+		}
+
+		// the children that may hold keys of the range
+		List<Child> children = new ArrayList<Child>();
+		for (Child child : children(new BTIndexPage(page, keyType), node))
+		{
+			if (hi != null && child.low != null && BT.keyCompare(child.low, hi) > 0)	break;
+			if (lo != null && child.high != null && BT.keyCompare(child.high, lo) < 0)	continue;
+			children.add(child);
+		}
+		btree.unpinPage(node.pageId, false);
+		int count = 0;
+		for (Child child : children)
+		{	count += count(child, lo, hi);	}
+		return count;
+	}
+
+	/**
+	 * number of entries with a key smaller than the key
+	 * @param key - the key, need not be in the tree. Input parameter.
+	 */
+	int rank(KeyClass key) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		return rank(new Child(btree.getHeaderPage().get_rootId(), null, null), key);
+	}
+
+	private int rank(Child node, KeyClass key) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		if (node.high != null && BT.keyCompare(node.high, key) < 0)	return subtreeCount(node.pageId);
+
+		HFPage page = new HFPage();
+		btree.pinPageForScan(node.pageId, page);
+		int keyType = btree.getHeaderPage().get_keyType();
+		RID iteratorRecord = new RID();
+		if (page.getType() != NodeType.INDEX)
+		{
+			BTLeafPage leafPage = new BTLeafPage(page, keyType);
+			int rank = 0;
+			for (KeyDataEntry entry = leafPage.getFirst(iteratorRecord);
+					entry != null && BT.keyCompare(entry.key, key) < 0; entry = leafPage.getNext(iteratorRecord))
+			{	rank++;	}
+			btree.unpinPage(node.pageId, false);
+			return rank;
+		}
+
+		// the children with keys before the key
+		List<Child> children = new ArrayList<Child>();
+		for (Child child : children(new BTIndexPage(page, keyType), node))
+		{
+			if (child.low != null && BT.keyCompare(child.low, key) >= 0)	break;
+			children.add(child);
+		}
+		btree.unpinPage(node.pageId, false);
+		int rank = 0;
+		for (Child child : children)
+		{	rank += rank(child, key);	}
+		return rank;
+	}
+
+	/**
+	 * the entry at a position of the key order
+	 * @param position - 0 for the first entry. Input parameter.
+	 * @return - the entry, null if the tree has no more than position entries
+	 */
+	KeyDataEntry select(int position) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		if (position < 0)	return null;
+		int keyType = btree.getHeaderPage().get_keyType();
+		PageId pageId = btree.getHeaderPage().get_rootId();
+		while (true)
+		{
+			HFPage page = new HFPage();
+			btree.pinPageForScan(pageId, page);
+			RID iteratorRecord = new RID();
+			if (page.getType() != NodeType.INDEX)
+			{
+				BTLeafPage leafPage = new BTLeafPage(page, keyType);
+				KeyDataEntry entry = leafPage.getFirst(iteratorRecord);
+				for (int i = 0; i < position && entry != null; i++)
+				{	entry = leafPage.getNext(iteratorRecord);	}
+				btree.unpinPage(pageId, false);
+				return entry;
+			}
+			List<Child> children = children(new BTIndexPage(page, keyType), new Child(pageId, null, null));
+			btree.unpinPage(pageId, false);
+			pageId = null;
+			for (Child child : children)
+			{
+				int count = subtreeCount(child.pageId);
+				if (position < count)
+				{
+					pageId = child.pageId;
+					break;
+				}
+				position -= count;
+			}
+			if (pageId == null)	return null;
+		}
+	}
+
+	/**
+	 * number of entries below the page, from the cache if it is there
+	 */
+	private int subtreeCount(PageId pageId) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		Integer cached = counts.get(pageId.pid);
+		if (cached != null)	return cached;
+		if (pageId.pid == btree.getHeaderPage().get_rootId().pid)	return btree.getHeaderPage().getEntryCount();
+
+		HFPage page = new HFPage();
+		btree.pinPageForScan(pageId, page);
+		int keyType = btree.getHeaderPage().get_keyType();
+		int count = 0;
+		if (page.getType() != NodeType.INDEX)
+		{
+			count = new BTLeafPage(page, keyType).numberOfRecords();
+			btree.unpinPage(pageId, false);
+		}
+		else
+		{
+			List<Child> children = children(new BTIndexPage(page, keyType), new Child(pageId, null, null));
+			btree.unpinPage(pageId, false);
+			for (Child child : children)
+			{	count += subtreeCount(child.pageId);	}
+		}
+		counts.put(pageId.pid, count);
+		return count;
+	}
+
+	/**
+	 * the children of an index page in key order, the keys of a child lie
+	 * between the separators on both sides of it
+	 */
+	private List<Child> children(BTIndexPage indexPage, Child node) throws IOException
+	{
+		List<Child> children = new ArrayList<Child>();
+		PageId childId = indexPage.getLeftLink();
+		KeyClass low = node.low;
+		RID iteratorRecord = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord); entry != null; entry = indexPage.getNext(iteratorRecord))
+		{
+			children.add(new Child(childId, low, entry.key));
+			childId = ((IndexData) entry.data).getData();
+			low = entry.key;
+		}
+		children.add(new Child(childId, low, node.high));
+		return children;
+	}
+
+	/**
+	 * @return - the smallest key, null if the tree is empty
+	 */
+	KeyClass min() throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		return edge(true);
+	}
+
+	/**
+	 * @return - the largest key, null if the tree is empty
+	 */
+	KeyClass max() throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		return edge(false);
+	}
+
+	/**
+	 * walk the leftmost or the rightmost path down to a leaf, then along the
+	 * leaf chain past the empty leaves
+	 */
+	private KeyClass edge(boolean first) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		int keyType = btree.getHeaderPage().get_keyType();
+		PageId pageId = btree.getHeaderPage().get_rootId();
+		while (true)
+		{
+			HFPage page = new HFPage();
+			btree.pinPageForScan(pageId, page);
+			RID iteratorRecord = new RID();
+			PageId nextId;
+			if (page.getType() == NodeType.INDEX)
+			{
+				BTIndexPage indexPage = new BTIndexPage(page, keyType);
+				nextId = indexPage.getLeftLink();
+				if (!first)
+				{
+					for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord); entry != null; entry = indexPage.getNext(iteratorRecord))
+					{	nextId = ((IndexData) entry.data).getData();	}
+				}
+			}
+			else
+			{
+				BTLeafPage leafPage = new BTLeafPage(page, keyType);
+				KeyDataEntry found = leafPage.getFirst(iteratorRecord);
+				if (!first)
+				{
+					for (KeyDataEntry entry = found; entry != null; entry = leafPage.getNext(iteratorRecord))
+					{	found = entry;	}
+				}
+				nextId = first ? leafPage.getNextPage() : leafPage.getPrevPage();
+				if (found != null)
+				{
+					btree.unpinPage(pageId, false);
+					return found.key;
+				}
+			}
+			btree.unpinPage(pageId, false);
+			if (nextId.pid == INVALID_PAGE)	return null;
+			pageId = nextId;
+		}
+	}
+}
@@ -0,0 +1,369 @@
+package btree;
+
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+import diskmgr.Page;
+
+/**
+ * BTCompactor defragments the leaf level of a B+ tree in two passes:
+ * (1) neighbouring leaves under the same parent are merged while their records
+ *     fit in one page, the separator of the emptied leaf is removed from the
+ *     parent and the leaf goes to the free list.
+ * (2) leaves are swapped page by page until the leaf chain visits them in
+ *     page id order, so a scan reads the file sequentially.
+ * Every step pins only the pages it changes and releases them before the next
+ * step, so lookups can run between steps. The leaves held by open scans are
+ * not merged, and the leaves are not moved while a scan holds one.
+ * Each step (one merge, one swap) is one logged operation of the tree, so a
+ * crash leaves the tree as it was before or after the step.
+ *
+ * @author MaTrix
+ *
+ */
+class BTCompactor implements GlobalConst
+{
+	// merge two leaves when their records fill at most this percentage of one page
+	private static final int MERGE_FILL = 90;
+
+	private BTreeFile btree;
+	private BTreeHeaderPage headerPage;
+	private int keyType;
+
+	BTCompactor(BTreeFile btree)
+	{
+		this.btree = btree;
+		this.headerPage = btree.getHeaderPage();
+		this.keyType = headerPage.get_keyType();
+	}
+
+	/**
+	 * @return number of leaf pages given back to the free list
+	 */
+	int compact() throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			DeleteRecException
+	{
+		int freed = mergeLeaves(headerPage.get_rootId());
+		relocateLeaves();
+		return freed;
+	}
+
+	/**
+	 * merge sparse leaves in the subtree of the given page.
+	 * @return number of leaves freed
+	 */
+	private int mergeLeaves(PageId pageId) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, DeleteRecException
+	{
+		HFPage page = new HFPage();
+		btree.pinPageForScan(pageId, page);
+		if (page.getType() != NodeType.INDEX)
+		{
+			btree.unpinPage(pageId, false);
+			return 0;
+		}
+		BTIndexPage indexPage = new BTIndexPage(page, keyType);
+		List<PageId> children = children(indexPage);
+		int records = indexPage.numberOfRecords();
+		btree.unpinPage(pageId, false);
+		int freed = 0;
+
+		if (getType(children.get(0)) == NodeType.INDEX)
+		{
+			for (PageId childId : children)
+			{	freed += mergeLeaves(childId);	}
+			return freed;
+		}
+
+		// the children are leaves, the parent must keep at least one key
+		PageId leftId = children.get(0);
+		for (int i = 1; i < children.size(); i++)
+		{
+			PageId rightId = children.get(i);
+			boolean merged = false;
+			if (records >= 2 && !btree.getPins().held(leftId) && !btree.getPins().held(rightId))
+			{
+				// one logged operation per merge, so few pages are held at a time
+				btree.beginOperation();
+				boolean completed = false;
+				try
+				{
+					merged = mergeLeaf(leftId, rightId);
+					if (merged)
+					{
+						page = new HFPage();
+						btree.pinPageForScan(pageId, page);
+						btree.removeChild(new BTIndexPage(page, keyType), rightId);
+						btree.unpinPage(pageId, true);
+						records--;
+						freed++;
+					}
+					completed = true;
+				}
+				finally
+				{
+					if (completed)	btree.endOperation();
+					else btree.abortOperation();
+				}
+			}
+			if (!merged)	leftId = rightId;
+		}
+		return freed;
+	}
+
+	/**
+	 * move the records of the right leaf into the left leaf if they fit.
+	 * @return true if the right leaf was emptied and freed
+	 */
+	private boolean mergeLeaf(PageId leftId, PageId rightId) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		Page left = new Page();
+		Page right = new Page();
+		btree.pinPageForScan(leftId, left);
+		btree.pinPageForScan(rightId, right);
+		BTLeafPage leftPage = new BTLeafPage(left, keyType);
+		BTLeafPage rightPage = new BTLeafPage(right, keyType);
+
+		int capacity = MAX_SPACE - HFPage.DPFIXED;
+		int used = (capacity - leftPage.available_space()) + (capacity - rightPage.available_space());
+		boolean merged = used <= capacity * MERGE_FILL / 100;
+		if (merged)
+		{
+			RID iteratorRecord = new RID();
+			for (KeyDataEntry entry = rightPage.getFirst(iteratorRecord); entry != null; entry = rightPage.getNext(iteratorRecord))
+			{	leftPage.insertRecord(entry.key, ((LeafData) entry.data).getData());	}
+
+			PageId nextId = rightPage.getNextPage();
+			leftPage.setNextPage(nextId);
+			if (nextId.pid != INVALID_PAGE)
+			{
+				HFPage nextPage = new HFPage();
+				btree.pinPageForScan(nextId, nextPage);
+				nextPage.setPrevPage(leftId);
+				btree.unpinPage(nextId, true);
+			}
+			btree.freePage(rightPage);
+			headerPage.setLeafPageCount(headerPage.getLeafPageCount() - 1);
+		}
+		btree.unpinPage(rightId, merged);
+		btree.unpinPage(leftId, merged);
+		return merged;
+	}
+
+	/**
+	 * swap leaves until the leaf chain is in page id order.
+	 */
+	private void relocateLeaves() throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		List<PageId> leaves = new ArrayList<PageId>();
+		List<PageId> parents = new ArrayList<PageId>();
+		// a scan would follow the contents of its leaf to another page
+		if (btree.getPins().holding())	return;
+		collectLeaves(headerPage.get_rootId(), null, leaves, parents);
+		if (leaves.size() < 2)	return;
+
+		List<PageId> sorted = new ArrayList<PageId>(leaves);
+		Collections.sort(sorted, new Comparator<PageId>() {
+			@Override
+			public int compare(PageId a, PageId b) {
+				return Integer.compare(a.pid, b.pid);
+			}
+		});
+
+		for (int i = 0; i < leaves.size(); i++)
+		{
+			PageId target = sorted.get(i);
+			if (leaves.get(i).pid == target.pid)	continue;
+			int j = i + 1;
+			while (leaves.get(j).pid != target.pid)	j++;
+			// the leaf at position i moves to page target, the leaf at position j to the page of i
+			btree.beginOperation();
+			boolean completed = false;
+			try
+			{
+				swapLeaves(leaves.get(i), parents.get(i), target, parents.get(j));
+				completed = true;
+			}
+			finally
+			{
+				if (completed)	btree.endOperation();
+				else btree.abortOperation();
+			}
+			leaves.set(j, leaves.get(i));
+			leaves.set(i, target);
+		}
+	}
+
+	/**
+	 * in-order list of the leaves in the subtree of the page, with the parent of each leaf
+	 */
+	private void collectLeaves(PageId pageId, PageId parentId, List<PageId> leaves, List<PageId> parents)
+			throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		HFPage page = new HFPage();
+		btree.pinPageForScan(pageId, page);
+		if (page.getType() == NodeType.INDEX)
+		{
+			List<PageId> children = children(new BTIndexPage(page, keyType));
+			btree.unpinPage(pageId, false);
+			for (PageId childId : children)
+			{	collectLeaves(childId, pageId, leaves, parents);	}
+		}
+		else
+		{
+			btree.unpinPage(pageId, false);
+			// a leaf root has no parent and nothing to relocate
+			if (parentId != null)
+			{
+				leaves.add(pageId);
+				parents.add(parentId);
+			}
+		}
+	}
+
+	/**
+	 * exchange the contents of two leaves, the pointers of their parents and
+	 * the links of their neighbours in the leaf chain.
+	 */
+	private void swapLeaves(PageId aId, PageId aParent, PageId bId, PageId bParent) throws ReplacerException,
+			HashOperationException, PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		Page a = new Page();
+		Page b = new Page();
+		btree.pinPageForScan(aId, a);
+		btree.pinPageForScan(bId, b);
+		byte[] temp = a.getpage().clone();
+		System.arraycopy(b.getpage(), 0, a.getpage(), 0, temp.length);
+		System.arraycopy(temp, 0, b.getpage(), 0, temp.length);
+		HFPage aPage = new HFPage(a);
+		HFPage bPage = new HFPage(b);
+		aPage.setCurPage(aId);
+		bPage.setCurPage(bId);
+
+		// every page linked to a or b is a or b or one of their neighbours
+		Set<Integer> linked = new HashSet<Integer>();
+		linked.add(aId.pid);
+		linked.add(bId.pid);
+		for (HFPage page : new HFPage[] { aPage, bPage })
+		{
+			linked.add(page.getPrevPage().pid);
+			linked.add(page.getNextPage().pid);
+		}
+		linked.remove(INVALID_PAGE);
+		swapLinks(aPage, aId, bId);
+		swapLinks(bPage, aId, bId);
+		btree.unpinPage(aId, true);
+		btree.unpinPage(bId, true);
+		for (int pid : linked)
+		{
+			if (pid == aId.pid || pid == bId.pid)	continue;
+			PageId pageId = new PageId(pid);
+			HFPage page = new HFPage();
+			btree.pinPageForScan(pageId, page);
+			swapLinks(page, aId, bId);
+			btree.unpinPage(pageId, true);
+		}
+
+		swapChildren(aParent, aId, bId);
+		if (bParent.pid != aParent.pid)	swapChildren(bParent, aId, bId);
+	}
+
+	/**
+	 * make the prev and next links of the page to a point to b and the other way round.
+	 */
+	private void swapLinks(HFPage page, PageId aId, PageId bId) throws IOException
+	{
+		page.setPrevPage(swap(page.getPrevPage(), aId, bId));
+		page.setNextPage(swap(page.getNextPage(), aId, bId));
+	}
+
+	private PageId swap(PageId pageId, PageId aId, PageId bId)
+	{
+		if (pageId.pid == aId.pid)	return new PageId(bId.pid);
+		if (pageId.pid == bId.pid)	return new PageId(aId.pid);
+		return pageId;
+	}
+
+	/**
+	 * make the pointers of the index page to a point to b and the other way round.
+	 * The child page id is the last field of an index record, it is rewritten in place.
+	 */
+	private void swapChildren(PageId parentId, PageId aId, PageId bId) throws ReplacerException,
+			HashOperationException, PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		HFPage page = new HFPage();
+		btree.pinPageForScan(parentId, page);
+		BTIndexPage indexPage = new BTIndexPage(page, keyType);
+		PageId leftLink = indexPage.getLeftLink();
+		if (leftLink.pid == aId.pid)	indexPage.setLeftLink(bId);
+		else if (leftLink.pid == bId.pid)	indexPage.setLeftLink(aId);
+
+		for (RID rid = indexPage.firstRecord(); rid != null; rid = indexPage.nextRecord(rid))
+		{
+			int position = indexPage.getSlotOffset(rid.slotNo) + indexPage.getSlotLength(rid.slotNo) - 4;
+			int pid = Convert.getIntValue(position, indexPage.getpage());
+			if (pid == aId.pid)	Convert.setIntValue(bId.pid, position, indexPage.getpage());
+			else if (pid == bId.pid)	Convert.setIntValue(aId.pid, position, indexPage.getpage());
+		}
+		btree.unpinPage(parentId, true);
+	}
+
+	/**
+	 * @return the children of the index page from left to right, the left link first
+	 */
+	private List<PageId> children(BTIndexPage indexPage)
+	{
+		List<PageId> children = new ArrayList<PageId>();
+		children.add(indexPage.getLeftLink());
+		RID iteratorRecord = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord); entry != null; entry = indexPage.getNext(iteratorRecord))
+		{	children.add(((IndexData) entry.data).getData());	}
+		return children;
+	}
+
+	private short getType(PageId pageId) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		HFPage page = new HFPage();
+		btree.pinPageForScan(pageId, page);
+		short type = page.getType();
+		btree.unpinPage(pageId, false);
+		return type;
+	}
+}
@@ -0,0 +1,226 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * BTCursor is a position in the leaf chain of a B+ tree that can be moved
+ * forward to a key, for probes with keys in ascending order such as the
+ * lookups of a multi-get or the inner side of a join. A seek to a key after
+ * the current position walks on from the current leaf, and moves sideways
+ * through the next links for at most MAX_SIDEWAYS leaves before it goes down
+ * from the root again; a seek backwards always goes down from the root.
+ *
+ * The cursor keeps its current leaf pinned, like a scan, until it is moved
+ * off it or closed.
+ *
+ * @author MaTrix
+ *
+ */
+class BTCursor implements GlobalConst, AutoCloseable
+{
+	// leaves walked through before a seek goes down from the root instead
+	static final int MAX_SIDEWAYS = 2;
+
+	private BTreeFile btree;
+	private int keyType;
+	private BTPinTracker.ScanPin pin;
+
+	private BTLeafPage leaf; // the pinned leaf, null before the first seek
+	private RID iteratorRecord = new RID();
+	private KeyDataEntry entry; // the current entry, null at the end of the tree
+	// every entry before the current one has a key <= passed, or if nothing
+	// was passed since the last descent a key < descentKey
+	private KeyClass passed;
+	private KeyClass descentKey;
+
+	private int descents;
+	private int leavesVisited;
+
+	BTCursor(BTreeFile btree)
+	{
+		this.btree = btree;
+		this.keyType = btree.getHeaderPage().get_keyType();
+		this.pin = btree.getPins().opened(this);
+	}
+
+	/**
+	 * move to the first entry of the tree
+	 * @return - the entry, null if the tree is empty
+	 */
+	KeyDataEntry first() throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		descend(null);
+		while (entry == null)
+		{
+			PageId nextId = leaf.getNextPage();
+			if (nextId.pid == INVALID_PAGE)	return null;
+			moveTo(nextId);
+		}
+		return entry;
+	}
+
+	/**
+	 * move to the first entry with a key >= key
+	 * @param key - the key. Input parameter.
+	 * @return - the entry, null if there is none
+	 */
+	KeyDataEntry seek(KeyClass key) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		boolean forward = leaf != null && (passed != null ? BT.keyCompare(key, passed) > 0
+				: descentKey == null || BT.keyCompare(key, descentKey) >= 0);
+		if (!forward)	descend(key);
+		boolean descended = !forward;
+		int sideways = 0;
+		while (true)
+		{
+			while (entry != null && BT.keyCompare(entry.key, key) < 0)
+			{
+				passed = entry.key;
+				entry = leaf.getNext(iteratorRecord);
+			}
+			if (entry != null)	return entry;
+			PageId nextId = leaf.getNextPage();
+			if (nextId.pid == INVALID_PAGE)	return null;
+			// far ahead: going down costs less than walking the leaves
+			if (!descended && ++sideways > MAX_SIDEWAYS)
+			{
+				descend(key);
+				descended = true;
+			}
+			else moveTo(nextId);
+		}
+	}
+
+	/**
+	 * @return - the entry after the current one, null at the end of the tree
+	 */
+	KeyDataEntry next() throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		if (entry == null)	return null;
+		passed = entry.key;
+		entry = leaf.getNext(iteratorRecord);
+		while (entry == null)
+		{
+			PageId nextId = leaf.getNextPage();
+			if (nextId.pid == INVALID_PAGE)	return null;
+			moveTo(nextId);
+		}
+		return entry;
+	}
+
+	/**
+	 * seek the key and read all its entries, the cursor stops after them
+	 * @param key - the key. Input parameter.
+	 * @return - the record ids of the entries with the key
+	 */
+	List<RID> find(KeyClass key) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		List<RID> rids = new ArrayList<RID>();
+		for (KeyDataEntry found = seek(key); found != null && BT.keyCompare(found.key, key) == 0; found = next())
+		{	rids.add(((LeafData) found.data).getData());	}
+		return rids;
+	}
+
+	/**
+	 * @return - the current entry, null at the end of the tree
+	 */
+	KeyDataEntry current()
+	{
+		return entry;
+	}
+
+	private void descend(KeyClass key) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		PageId leafId = btree.leafFor(key);
+		descents++;
+		moveTo(leafId);
+		passed = null;
+		descentKey = key;
+	}
+
+	private void moveTo(PageId leafId) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		release();
+		HFPage page = new HFPage();
+		btree.pinPageForScan(leafId, page);
+		btree.getPins().holding(pin, leafId);
+		leavesVisited++;
+		leaf = new BTLeafPage(page, keyType);
+		entry = leaf.getFirst(iteratorRecord);
+	}
+
+	private void release() throws ReplacerException, PageUnpinnedException, HashEntryNotFoundException,
+			InvalidFrameNumberException, IOException
+	{
+		if (leaf == null)	return;
+		btree.unpinPage(leaf.getCurPage(), false);
+		btree.getPins().holding(pin, null);
+		leaf = null;
+	}
+
+	/**
+	 * @return - number of root-to-leaf descents so far
+	 */
+	int getDescents()
+	{
+		return descents;
+	}
+
+	/**
+	 * @return - number of leaves pinned so far
+	 */
+	int getLeavesVisited()
+	{
+		return leavesVisited;
+	}
+
+	/**
+	 * give back the pin of the current leaf
+	 */
+	@Override
+	public void close()
+	{
+		try
+		{
+			release();
+		}
+		catch (ReplacerException | PageUnpinnedException | HashEntryNotFoundException
+				| InvalidFrameNumberException | IOException e)
+		{	e.printStackTrace();	}
+		btree.getPins().closed(pin);
+		entry = null;
+	}
+}
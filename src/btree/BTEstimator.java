@@ -0,0 +1,250 @@
+package btree;
+
+import global.AttrType;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.util.Random;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * BTEstimator answers selectivity, quantile and sampling questions about a
+ * B+ tree by walking single root-to-leaf paths, so it pins one page per level
+ * instead of scanning the leaves. Positions are interpolated as if every page
+ * of a level had the same number of entries below it.
+ *
+ * @author MaTrix
+ *
+ */
+class BTEstimator implements GlobalConst
+{
+	// give up on a sample after this many rejected walks per requested entry
+	private static final int MAX_WALKS_PER_SAMPLE = 100;
+
+	private BTreeFile btree;
+	private BTreeHeaderPage headerPage;
+	private int keyType;
+
+	BTEstimator(BTreeFile btree)
+	{
+		this.btree = btree;
+		this.headerPage = btree.getHeaderPage();
+		this.keyType = headerPage.get_keyType();
+	}
+
+	/**
+	 * estimated fraction of the entries with lo <= key <= hi.
+	 * @param lo - lower bound, null for no lower bound. Input parameter.
+	 * @param hi - upper bound, null for no upper bound. Input parameter.
+	 */
+	double selectivity(KeyClass lo, KeyClass hi) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		double from = (lo == null) ? 0 : position(lo, false);
+		double to = (hi == null) ? 1 : position(hi, true);
+		return Math.max(0, Math.min(1, to - from));
+	}
+
+	/**
+	 * estimated fraction of the entries before the key, i.e. its relative
+	 * position in the leaf level.
+	 * @param key - the key to locate. Input parameter.
+	 * @param inclusive - count the entries equal to the key as before it. Input parameter.
+	 */
+	private double position(KeyClass key, boolean inclusive) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		double position = 0;
+		double width = 1;
+		PageId pageId = headerPage.get_rootId();
+		while (true)
+		{
+			HFPage page = new HFPage();
+			btree.pinPageForScan(pageId, page);
+			RID iteratorRecord = new RID();
+			if (page.getType() == NodeType.INDEX)
+			{
+				// the child taken by getPageNoByKey, 0 is the left link
+				BTIndexPage indexPage = new BTIndexPage(page, keyType);
+				int fanout = indexPage.numberOfRecords() + 1;
+				int child = 0;
+				PageId childId = indexPage.getLeftLink();
+				for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord);
+						entry != null && BT.keyCompare(key, entry.key) >= 0; entry = indexPage.getNext(iteratorRecord))
+				{
+					child++;
+					childId = ((IndexData) entry.data).getData();
+				}
+				width /= fanout;
+				position += child * width;
+				btree.unpinPage(pageId, false);
+				pageId = childId;
+			}
+			else
+			{
+				BTLeafPage leafPage = new BTLeafPage(page, keyType);
+				int records = leafPage.numberOfRecords();
+				int before = 0;
+				for (KeyDataEntry entry = leafPage.getFirst(iteratorRecord); entry != null; entry = leafPage.getNext(iteratorRecord))
+				{
+					int compare = BT.keyCompare(entry.key, key);
+					if (compare < 0 || (inclusive && compare == 0))	before++;
+					else break;
+				}
+				if (records > 0)	position += width * before / records;
+				btree.unpinPage(pageId, false);
+				return position;
+			}
+		}
+	}
+
+	/**
+	 * the key found at the given relative position of the leaf level.
+	 * @param fraction - 0 for the smallest key, 1 for the largest. Input parameter.
+	 * @return - the key, null if the tree is empty
+	 */
+	KeyClass quantile(double fraction) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		PageId pageId = headerPage.get_rootId();
+		while (true)
+		{
+			HFPage page = new HFPage();
+			btree.pinPageForScan(pageId, page);
+			RID iteratorRecord = new RID();
+			if (page.getType() == NodeType.INDEX)
+			{
+				BTIndexPage indexPage = new BTIndexPage(page, keyType);
+				int fanout = indexPage.numberOfRecords() + 1;
+				int child = Math.min(fanout - 1, (int) (fraction * fanout));
+				fraction = fraction * fanout - child;
+				PageId childId = indexPage.getLeftLink();
+				KeyDataEntry entry = indexPage.getFirst(iteratorRecord);
+				for (int i = 0; i < child && entry != null; i++)
+				{
+					childId = ((IndexData) entry.data).getData();
+					entry = indexPage.getNext(iteratorRecord);
+				}
+				btree.unpinPage(pageId, false);
+				pageId = childId;
+			}
+			else
+			{
+				BTLeafPage leafPage = new BTLeafPage(page, keyType);
+				int records = leafPage.numberOfRecords();
+				KeyClass key = null;
+				if (records > 0)
+				{
+					int position = Math.min(records - 1, (int) (fraction * records));
+					KeyDataEntry entry = leafPage.getFirst(iteratorRecord);
+					for (int i = 0; i < position; i++)
+					{	entry = leafPage.getNext(iteratorRecord);	}
+					key = entry.key;
+				}
+				btree.unpinPage(pageId, false);
+				return key;
+			}
+		}
+	}
+
+	/**
+	 * random sample of the data entries. Every walk picks a random child per level
+	 * and a random record in the leaf, and is accepted with probability
+	 * proportional to the fanouts it met (acceptance/rejection sampling), so
+	 * entries in sparse pages are not favoured. The bounds of the fanouts are
+	 * those of pages full of the shortest records, so no page exceeds them;
+	 * in a StringKey tree of long keys most walks are then rejected.
+	 * @param size - number of entries wanted. Input parameter.
+	 * @param random - source of randomness. Input parameter.
+	 * @return - the sampled entries, fewer than size if the tree is (nearly) empty.
+	 */
+	KeyDataEntry[] sample(int size, Random random) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		KeyDataEntry[] samples = new KeyDataEntry[size];
+		int found = 0;
+		for (int walks = 0; found < size && walks < size * MAX_WALKS_PER_SAMPLE; walks++)
+		{
+			KeyDataEntry entry = walk(random);
+			if (entry != null)	samples[found++] = entry;
+		}
+		if (found == size)	return samples;
+		KeyDataEntry[] fewer = new KeyDataEntry[found];
+		System.arraycopy(samples, 0, fewer, 0, found);
+		return fewer;
+	}
+
+	/**
+	 * one random root-to-leaf walk.
+	 * @return - the chosen entry, null if the walk was rejected.
+	 */
+	private KeyDataEntry walk(Random random) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException
+	{
+		// the shortest key: an int, or the length of an empty string
+		int keyLength = (keyType == AttrType.attrInteger) ? 4 : 2;
+		// a page id per index record, a record id per leaf record
+		int maxFanout = (MAX_SPACE - HFPage.DPFIXED) / (keyLength + 4 + HFPage.SIZE_OF_SLOT) + 1;
+		int maxRecords = (MAX_SPACE - HFPage.DPFIXED) / (keyLength + 8 + HFPage.SIZE_OF_SLOT);
+		PageId pageId = headerPage.get_rootId();
+		while (true)
+		{
+			HFPage page = new HFPage();
+			btree.pinPageForScan(pageId, page);
+			RID iteratorRecord = new RID();
+			if (page.getType() == NodeType.INDEX)
+			{
+				BTIndexPage indexPage = new BTIndexPage(page, keyType);
+				int fanout = indexPage.numberOfRecords() + 1;
+				int child = random.nextInt(fanout);
+				PageId childId = indexPage.getLeftLink();
+				KeyDataEntry entry = indexPage.getFirst(iteratorRecord);
+				for (int i = 0; i < child && entry != null; i++)
+				{
+					childId = ((IndexData) entry.data).getData();
+					entry = indexPage.getNext(iteratorRecord);
+				}
+				btree.unpinPage(pageId, false);
+				if (random.nextDouble() * Math.max(maxFanout, fanout) >= fanout)	return null;
+				pageId = childId;
+			}
+			else
+			{
+				BTLeafPage leafPage = new BTLeafPage(page, keyType);
+				int records = leafPage.numberOfRecords();
+				KeyDataEntry entry = null;
+				if (records > 0 && random.nextDouble() * Math.max(maxRecords, records) < records)
+				{
+					int position = random.nextInt(records);
+					entry = leafPage.getFirst(iteratorRecord);
+					for (int i = 0; i < position; i++)
+					{	entry = leafPage.getNext(iteratorRecord);	}
+				}
+				btree.unpinPage(pageId, false);
+				return entry;
+			}
+		}
+	}
+}
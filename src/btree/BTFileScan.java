@@ -3,7 +3,6 @@ package btree;
 import global.GlobalConst;
 import global.PageId;
 import global.RID;
-import global.SystemDefs;
 import heap.HFPage;
 
 import java.io.IOException;
@@ -21,16 +20,23 @@ import bufmgr.ReplacerException;
 /**
  * BTFileScan implements a search/iterate interface to B+ tree index files
  * (class BTreeFile). It derives from abstract base class IndexFileScan.
+ * The scan keeps its current leaf pinned until it reaches the end or is
+ * destroyed; it can be used in a try-with-resources statement, which
+ * destroys it even when the caller stops early. The position after the
+ * last entry returned can be taken as a ScanToken, to go on with the range
+ * in a later scan without keeping this one open.
  * 
  * @author MaTrix
  * 
  */
-public class BTFileScan extends IndexFileScan implements GlobalConst 
+public class BTFileScan extends IndexFileScan implements GlobalConst, AutoCloseable 
 {
 
 	BTreeFile btree;	// the called tree
-	BTLeafPage currentLeaf; // (initialy) the most left leaf page (initial pin is done in the BTreeFile method)
-	RID currentRecord; // (initialy) first record of the left most leaf page
+	BTLeafPage currentLeaf; // (initialy) the leaf of the low key (initial pin is done in the BTreeFile method)
+	RID currentRecord; // (initialy) first record of that leaf
+	BTVersions.Snapshot snapshot; // the snapshot read by the scan, null to read the current pages
+	BTPinTracker.ScanPin pin; // the account of the pinned leaf, null for a snapshot scan
 	KeyClass lowKey; // lower bound
 	KeyClass highKey; // upper bound
 	int keyType; // type of the key
@@ -39,6 +45,16 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 	private boolean getNextCalled = false; // initial call for getNext
 	private boolean deletedCalled = false; // if the delete function is called
 	private KeyDataEntry currentEntry;
+	private boolean exhausted = false; // get_next returned null
+
+	// the last entry returned, for the token
+	private KeyClass lastKey;
+	private RID lastRid;
+	private int duplicates; // entries returned with the last key
+
+	private long openedAt; // for the metrics of the tree
+	private boolean lookup; // low and high keys are equal
+	private int leavesVisited;
 
 	/**
 	 * Iterate once (during a scan).
@@ -52,6 +68,18 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 	@Override
 	public KeyDataEntry get_next() 
 	{
+		boolean traced = btree.traceBegin("get_next", lowKey);
+		try 
+		{
+			return returned(next());
+		}
+		finally
+		{	btree.traceEnd(traced);	}
+	}
+
+	private KeyDataEntry next() 
+	{
+		if (exhausted)	return null;
 		try 
 		{
 			if (currentLeaf != null && btree.getHeaderPage()!= null ) 
@@ -69,44 +97,26 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 					{
 						// initial value
 						currentEntry =  currentLeaf.getFirst(currentRecord);
-						while(true)
-						{
-							//found
-							if(BT.keyCompare(lowKey, currentEntry.key) == 0)	break;
-							advanceEntry();
-						}
+						// the first entry not below lowKey, lowKey itself may be absent
+						while(currentEntry != null && BT.keyCompare(lowKey, currentEntry.key) > 0)	advanceEntry();
 					}
-					
-					// 1st record not found or no records in the page 
-					if(currentEntry == null) currentLeaf = null;
 					// done 1st call
 					getNextCalled = true;
 				}
 				// calls after the first one ( !deletedCalled because if it is called then current record = next)
-				else if(!deletedCalled)
-				{
-					// from lowKey to the end
-					if( (lowKey==null && highKey==null) || (lowKey!= null && highKey == null))	
-					{
-						advanceEntry();
-					}
-					// from lowKey to highKey
-					else if( (lowKey==null && highKey!=null) || 
-							(lowKey!= null && highKey != null && BT.keyCompare(lowKey, highKey)<0) )
-					{
-						if(BT.keyCompare(highKey, currentEntry.key) >= 0)	advanceEntry();
-						// upper bound reached
-						else return null;
-					}
-					// Exactly match (how is this? is there duplicates or what?)
-					else								//found
-							return null ;
-				}
+				else if(!deletedCalled)	advanceEntry();
 				else deletedCalled = false;
+				
+				// upper bound reached, duplicates of an exact match included
+				if(currentEntry != null && highKey != null && BT.keyCompare(currentEntry.key, highKey) > 0)	
+				{	currentEntry = null;	}
+				// no records left in the range, the leaf is given back
+				if(currentEntry == null)	release();
 			}
 			else throw new IteratorException(new Exception(),"BTFileScan.IteratorException");
 		} 
-		catch (KeyNotMatchException e) 	
+		catch (KeyNotMatchException | ReplacerException | PageUnpinnedException
+				| HashEntryNotFoundException | InvalidFrameNumberException | IOException e) 	
 		{	e.printStackTrace();	}
 		catch (IteratorException e)
 		{
@@ -117,6 +127,104 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 		return currentEntry;
 	}
 	
+	/**
+	 * remember the entry for the token
+	 */
+	private KeyDataEntry returned(KeyDataEntry entry)
+	{
+		if (entry == null)
+		{
+			exhausted = true;
+			return null;
+		}
+		try 
+		{
+			if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0)	duplicates++;
+			else
+			{
+				lastKey = entry.key;
+				duplicates = 1;
+			}
+		} 
+		catch (KeyNotMatchException e) 
+		{	e.printStackTrace();	}
+		lastRid = ((LeafData) entry.data).getData();
+		return entry;
+	}
+
+	/**
+	 * the position after the last entry returned, see BTreeFile.resume_scan
+	 * @return - the token of the scan
+	 */
+	public ScanToken token()
+	{
+		return new ScanToken(lowKey, highKey, lastKey, lastRid, duplicates, exhausted);
+	}
+
+	/**
+	 * move the scan, pinned on the leaf where the token's last key starts,
+	 * to the entry it returned last: the next call of get_next goes on after it.
+	 * The scan of a token taken at the end has nothing pinned and returns nothing.
+	 * @param token - the position. Input parameter.
+	 * @param skip - the entries with the last key already returned that are still in the tree. Input parameter.
+	 */
+	void resume(ScanToken token, int skip) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		lastKey = token.getLastKey();
+		lastRid = token.getLastRid();
+		duplicates = token.getDuplicates();
+		getNextCalled = true;
+		if (token.isEnd())
+		{
+			exhausted = true;
+			return;
+		}
+		currentEntry = currentLeaf.getFirst(currentRecord);
+		// past the empty leaves
+		while (currentEntry == null)
+		{
+			PageId nextPageId = currentLeaf.getNextPage();
+			release();
+			if (nextPageId.pid == INVALID_PAGE)	break;
+			HFPage nextPage = new HFPage();
+			btree.pinPageForScan(nextPageId, nextPage);
+			currentLeaf = new BTLeafPage(nextPage, keyType);
+			holding(nextPageId);
+			leavesVisited++;
+			currentEntry = currentLeaf.getFirst(currentRecord);
+		}
+		while (currentEntry != null && BT.keyCompare(currentEntry.key, lastKey) < 0)	advanceEntry();
+		for (int i = 1; i < skip && currentEntry != null; i++)	advanceEntry();
+		if (skip > 0 && currentEntry != null)	return;
+
+		// nothing returned is left: the current entry is the next one to return
+		deletedCalled = true;
+		if (currentEntry == null || (highKey != null && BT.keyCompare(currentEntry.key, highKey) > 0))
+		{
+			release();
+			exhausted = true;
+		}
+	}
+
+	/**
+	 * start the metrics of the scan
+	 */
+	void opened(KeyClass lowKey, KeyClass highKey)
+	{
+		openedAt = System.nanoTime();
+		leavesVisited = 1;
+		try 
+		{
+			lookup = lowKey != null && highKey != null && BT.keyCompare(lowKey, highKey) == 0;
+		} 
+		catch (KeyNotMatchException e) 
+		{	e.printStackTrace();	}
+		btree.getMetrics().opened(lookup);
+	}
+
 	private void advanceEntry()
 	{
 		try 
@@ -129,8 +237,23 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 			{
 				//get id of the next page
 				PageId nextPageId = currentLeaf.getNextPage();
-				// unpin current page
-				SystemDefs.JavabaseBM.unpinPage(currentLeaf.getCurPage(), true);
+				// a snapshot scan reads private copies of the pages, nothing to pin
+				if (snapshot != null)
+				{
+					if (nextPageId.pid == INVALID_PAGE)
+					{
+						currentEntry = null;
+						currentLeaf = null;
+						return;
+					}
+					currentLeaf = new BTLeafPage(snapshot.read(nextPageId), keyType);
+					leavesVisited++;
+					currentEntry = currentLeaf.getFirst(currentRecord);
+					return;
+				}
+				// unpin current page, the scan does not change it
+				btree.unpinPage(currentLeaf.getCurPage(), false);
+				holding(null);
 				// if there is no next page , end of search
 				if(nextPageId.pid==-1)
 				{
@@ -140,8 +263,10 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 				}
 				//if there is
 				HFPage nextPage = new HFPage();
-				SystemDefs.JavabaseBM.pinPage(nextPageId, nextPage, false);
+				btree.pinPageForScan(nextPageId, nextPage);
 				currentLeaf = new BTLeafPage(nextPage, NodeType.LEAF);
+				holding(nextPageId);
+				leavesVisited++;
 				currentEntry =  currentLeaf.getFirst(currentRecord);
 			}
 		} 
@@ -181,20 +306,48 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 	}
 
 	/**
-	 * destructor. unpin some pages if they are not unpinned already. and do
-	 * some clearing work.
+	 * record the leaf the scan keeps pinned
+	 * @param leaf - the leaf, null when the scan holds none. Input parameter.
+	 */
+	void holding(PageId leaf)
+	{
+		if (pin != null)	btree.getPins().holding(pin, leaf);
+	}
+
+	/**
+	 * unpin the current leaf if the scan holds it
+	 */
+	private void release() throws ReplacerException, PageUnpinnedException, HashEntryNotFoundException,
+			InvalidFrameNumberException, IOException
+	{
+		if (snapshot == null && currentLeaf != null)
+		{
+			btree.unpinPage(currentLeaf.getCurPage(), false);
+			holding(null);
+		}
+		currentLeaf = null;
+	}
+
+	/**
+	 * destructor. unpin the current leaf if it is still pinned, and do
+	 * some clearing work. Calling it again does nothing.
 	 */
 	public void DestroyBTreeFileScan() 
 	{
+		if (openedAt != 0)	btree.getMetrics().closed(lookup, System.nanoTime() - openedAt, leavesVisited);
+		openedAt = 0;
 		try 
 		{
-			// if no call done to the getEntry method OR if we stopped at a highKey entry
-			if(!getNextCalled || currentEntry!= null)
+			if (snapshot != null)
 			{
-				SystemDefs.JavabaseBM.unpinPage(currentLeaf.getCurPage(), true);
+				snapshot.release();
+				snapshot = null;
+				currentLeaf = null;
+				return;
 			}
-			
-			currentLeaf = null;
+			release();
+			if (pin != null)	btree.getPins().closed(pin);
+			pin = null;
 		}
 		catch (ReplacerException | PageUnpinnedException
 				| HashEntryNotFoundException | InvalidFrameNumberException
@@ -202,4 +355,13 @@ public class BTFileScan extends IndexFileScan implements GlobalConst
 		{	e.printStackTrace();	}
 	}
 
+	/**
+	 * same as DestroyBTreeFileScan, for try-with-resources
+	 */
+	@Override
+	public void close()
+	{
+		DestroyBTreeFileScan();
+	}
+
 }
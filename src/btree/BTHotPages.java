@@ -0,0 +1,114 @@
+package btree;
+
+import global.PageId;
+import global.SystemDefs;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+import diskmgr.Page;
+
+/**
+ * BTHotPages protects the hot index pages of a B+ tree from the replacer of
+ * the buffer manager with a 2Q policy on top of it. Only the index pages met
+ * by lookups, inserts and deletes count; the pages of scans, sampling and
+ * compaction are never admitted, so a long scan cannot push them out.
+ *
+ * An index page seen for the first time only enters a history of page ids
+ * (the A1 queue of 2Q). Seen again while in the history, it is admitted to
+ * the hot set (the Am queue), where it keeps one extra pin so the replacer
+ * cannot choose it. When the hot set is full, its least recently used page
+ * loses that pin and goes back to the replacer.
+ *
+ * @author MaTrix
+ *
+ */
+class BTHotPages
+{
+	private int capacity;
+
+	// page ids of the index pages seen once, oldest first
+	private LinkedHashSet<Integer> history = new LinkedHashSet<Integer>();
+	// the pinned hot pages, least recently used first
+	private LinkedHashMap<Integer, PageId> hot = new LinkedHashMap<Integer, PageId>(16, 0.75f, true);
+
+	/**
+	 * @param capacity - the number of pages kept pinned, 0 to keep none. Input parameter.
+	 */
+	BTHotPages(int capacity)
+	{
+		this.capacity = capacity;
+	}
+
+	/**
+	 * called after every page the tree pins.
+	 * @param pageId - the page. Input parameter.
+	 * @param role - the type of the page: NodeType.INDEX, LEAF or BTHEAD. Input parameter.
+	 * @param scan - true if the page is read by a scan, false for a lookup. Input parameter.
+	 */
+	void accessed(PageId pageId, short role, boolean scan) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException
+	{
+		if (capacity == 0 || scan || role != NodeType.INDEX)	return;
+		// a hit moves the page to the most recently used end
+		if (hot.get(pageId.pid) != null)	return;
+		if (!history.remove(pageId.pid))
+		{
+			history.add(pageId.pid);
+			// the history remembers twice as many pages as the hot set holds
+			if (history.size() > 2 * capacity)
+			{
+				Iterator<Integer> oldest = history.iterator();
+				oldest.next();
+				oldest.remove();
+			}
+			return;
+		}
+
+		PageId retained = new PageId(pageId.pid);
+		SystemDefs.JavabaseBM.pinPage(retained, new Page(), false);
+		hot.put(retained.pid, retained);
+		if (hot.size() > capacity)
+		{
+			Iterator<PageId> victim = hot.values().iterator();
+			PageId victimId = victim.next();
+			victim.remove();
+			try
+			{	SystemDefs.JavabaseBM.unpinPage(victimId, false);	}
+			catch (HashEntryNotFoundException e)
+			{	e.printStackTrace();	}
+		}
+	}
+
+	/**
+	 * number of pages kept pinned
+	 */
+	int size()
+	{
+		return hot.size();
+	}
+
+	/**
+	 * give the pins of the hot pages back, e.g. when the file is closed
+	 */
+	void clear() throws ReplacerException, PageUnpinnedException, HashEntryNotFoundException,
+			InvalidFrameNumberException
+	{
+		for (PageId pageId : hot.values())
+		{	SystemDefs.JavabaseBM.unpinPage(pageId, false);	}
+		hot.clear();
+		history.clear();
+	}
+}
@@ -0,0 +1,542 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.SystemDefs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidBufferException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+import diskmgr.DiskMgrException;
+import diskmgr.FileIOException;
+import diskmgr.InvalidPageNumberException;
+import diskmgr.Page;
+
+/**
+ * BTLog is the write-ahead log of a BTreeFile. Every insert, delete or
+ * compaction step is one operation; for each page the operation changes the
+ * log holds the page as it was before the operation (undo) and after it (redo).
+ * A page changed by an operation stays pinned until its records are forced to
+ * the log file, so the buffer manager can never write it to disk first.
+ *
+ * Recovery replays the after images of the committed operations and then
+ * puts back the before images of an operation that did not commit, e.g. a
+ * crash between splitLeaf and the insertKey into the parent. An operation
+ * that fails halfway is aborted: its pages are put back as they were before
+ * it while they are still pinned, and recovery skips its records.
+ *
+ * With group commit the commit record is not forced at once: the pages of
+ * the operation stay held until a flusher thread (or the operation that fills
+ * the group) forces the log, and are released by the next operation of the
+ * tree, so the buffer manager is only ever called from the thread of the tree.
+ * In the asynchronous mode the pages stay held until a checkpoint, the close
+ * or the bound below forces the log.
+ * The held pages are bounded by a quarter of the buffer pool: an operation
+ * that reaches the bound forces the log at its commit whatever the mode.
+ *
+ * A page newly allocated in the database by an operation is logged too: if
+ * the operation is undone, recovery gives the page back to the database.
+ *
+ * Record format: type (byte), operation (long), and for page images the
+ * page id (int), the image length (int) and the image; for an allocation
+ * the page id (int).
+ *
+ * @author MaTrix
+ *
+ */
+class BTLog implements GlobalConst
+{
+	private static final byte BEGIN = 1;
+	private static final byte BEFORE = 2;
+	private static final byte AFTER = 3;
+	private static final byte COMMIT = 4;
+	private static final byte ALLOCATE = 5;
+	private static final byte ABORT = 6;
+
+	// the least number of changed pages held before the log is forced
+	private static final int MIN_HELD_PAGES = 8;
+
+	// take a checkpoint once the log grows past this size
+	private static final long CHECKPOINT_SIZE = 4 * 1024 * 1024;
+
+	private File path;
+	private FileOutputStream file;
+	private DataOutputStream out;
+	private long size;
+
+	private short durability = Durability.SYNC;
+	private int groupRecords;
+	private int maxHeld; // force at the commit that holds this many pages
+	// committed operations not forced yet
+	private int pending;
+	// the first forcedHeld entries of held are covered by a forced log
+	private int forcedHeld;
+	private Thread flusher;
+	private volatile boolean closed;
+
+	private long lastOperation;
+	private long operation; // the current operation, 0 outside of an operation
+	private boolean begun; // the begin record of the operation is written
+	private int heldBefore; // entries of held before the current operation
+	// pages the current operation allocated in the database
+	private List<PageId> allocations = new ArrayList<PageId>();
+
+	private PageId headerPageId;
+	private Page headerPage;
+	private byte[] headerBefore;
+
+	// content of the pages when the current operation first pinned them
+	private Map<Integer, byte[]> beforeImages = new HashMap<Integer, byte[]>();
+	private Map<Integer, Page> pages = new HashMap<Integer, Page>();
+	// pages whose before image is in the log for the current operation
+	private Set<Integer> logged = new HashSet<Integer>();
+	// changed pages kept pinned until their records are forced, one entry per pin
+	private List<PageId> held = new ArrayList<PageId>();
+	// pages changed since the last checkpoint
+	private Set<Integer> touched = new HashSet<Integer>();
+
+	BTLog(String path) throws IOException
+	{
+		this.path = new File(path);
+		maxHeld = Math.max(MIN_HELD_PAGES, SystemDefs.JavabaseBM.getNumBuffers() / 4);
+		open();
+	}
+
+	private void open() throws IOException
+	{
+		file = new FileOutputStream(path, true);
+		out = new DataOutputStream(new BufferedOutputStream(file));
+		size = path.length();
+	}
+
+	/**
+	 * choose when the commit records are forced.
+	 * @param durability - Durability.SYNC, GROUP_COMMIT or ASYNC. Input parameter.
+	 * @param groupMillis - force interval of the flusher thread. Input parameter.
+	 * @param groupRecords - force when this many operations wait. Input parameter.
+	 */
+	synchronized void setDurability(short durability, final int groupMillis, int groupRecords)
+	{
+		this.durability = durability;
+		this.groupRecords = groupRecords;
+		if (durability != Durability.GROUP_COMMIT || flusher != null)	return;
+		flusher = new Thread("BTLog flusher " + path.getName()) {
+			@Override
+			public void run() {
+				while (!closed)
+				{
+					try
+					{	Thread.sleep(groupMillis);	}
+					catch (InterruptedException e)
+					{	return;	}
+					synchronized (BTLog.this)
+					{
+						try
+						{	if (pending > 0 && !closed)	force();	}
+						catch (IOException e)
+						{	e.printStackTrace();	}
+					}
+				}
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	boolean inOperation()
+	{
+		return operation != 0;
+	}
+
+	/**
+	 * start an operation of the tree
+	 * @param headerPageId - id of the header page. Input parameter.
+	 * @param headerPage - the header page, pinned while the tree is open. Input parameter.
+	 */
+	synchronized void begin(PageId headerPageId, Page headerPage)
+	{
+		releaseForced();
+		heldBefore = held.size();
+		operation = ++lastOperation;
+		this.headerPageId = headerPageId;
+		this.headerPage = headerPage;
+		headerBefore = headerPage.getpage().clone();
+	}
+
+	/**
+	 * remember the content of a page the first time the operation pins it.
+	 */
+	void pinned(PageId pageId, Page page)
+	{
+		if (operation != 0 && !beforeImages.containsKey(pageId.pid))
+		{
+			beforeImages.put(pageId.pid, page.getpage().clone());
+			pages.put(pageId.pid, page);
+		}
+	}
+
+	/**
+	 * log a page the operation allocated in the database, so that it is given
+	 * back if the operation is undone
+	 */
+	synchronized void allocated(PageId pageId)
+	{
+		if (operation == 0)	return;
+		try
+		{
+			writeBegin();
+			out.writeByte(ALLOCATE);
+			out.writeLong(operation);
+			out.writeInt(pageId.pid);
+			size += 13;
+		}
+		catch (IOException e)
+		{	e.printStackTrace();	}
+		allocations.add(new PageId(pageId.pid));
+	}
+
+	/**
+	 * called before a dirty page is unpinned. A page the operation changed is
+	 * logged and stays pinned until the log is forced.
+	 * @return true if the page is held, the caller must not unpin it.
+	 */
+	synchronized boolean unpinning(PageId pageId)
+	{
+		if (operation == 0)	return false;
+		Page page = pages.get(pageId.pid);
+		byte[] before = beforeImages.get(pageId.pid);
+		if (page == null || Arrays.equals(before, page.getpage()))	return false;
+		try
+		{
+			if (logged.add(pageId.pid))	writeImage(BEFORE, pageId.pid, before);
+			writeImage(AFTER, pageId.pid, page.getpage());
+		}
+		catch (IOException e)
+		{	e.printStackTrace();	}
+		touched.add(pageId.pid);
+		held.add(new PageId(pageId.pid));
+		return true;
+	}
+
+	/**
+	 * end the current operation: log the header page if it changed, write the
+	 * commit record, force the log and release the held pages. An operation
+	 * that changed nothing leaves no record.
+	 */
+	synchronized void commit()
+	{
+		if (operation == 0)	return;
+		try
+		{
+			if (!Arrays.equals(headerBefore, headerPage.getpage()))
+			{
+				writeImage(BEFORE, headerPageId.pid, headerBefore);
+				writeImage(AFTER, headerPageId.pid, headerPage.getpage());
+				touched.add(headerPageId.pid);
+			}
+			if (begun)
+			{
+				out.writeByte(COMMIT);
+				out.writeLong(operation);
+				size += 9;
+				pending++;
+				if (durability == Durability.SYNC 
+						|| (durability == Durability.GROUP_COMMIT && pending >= groupRecords)
+						|| held.size() >= maxHeld)
+					force();
+				// the pages stay held until a real force: the records handed to the
+				// operating system may not reach the disk before the pages would
+				else if (durability == Durability.ASYNC)	out.flush();
+			}
+		}
+		catch (IOException e)
+		{	e.printStackTrace();	}
+		end();
+		releaseForced();
+		if (size > CHECKPOINT_SIZE)	checkpoint();
+	}
+
+	/**
+	 * undo the current operation after it failed halfway: put back the pages
+	 * it changed as they were before it and write an abort record, so recovery
+	 * neither redoes nor undoes it. Only pinned pages can be put back: the
+	 * pages the operation holds and the ones given by the caller. The pages
+	 * it held are unpinned, the older pages still held keep any change they
+	 * share with them from reaching the disk before the log.
+	 * @param pinned - the pages the failed operation left pinned. Input parameter.
+	 * @return - the pages the operation allocated in the database, unpinned by
+	 * 			 the log, for the caller to give back once it unpinned them too
+	 */
+	synchronized List<PageId> abort(Set<Integer> pinned)
+	{
+		List<PageId> allocated = new ArrayList<PageId>(allocations);
+		if (operation == 0)	return allocated;
+		for (Map.Entry<Integer, Page> entry : pages.entrySet())
+		{
+			if (!logged.contains(entry.getKey()) && !pinned.contains(entry.getKey()))	continue;
+			byte[] before = beforeImages.get(entry.getKey());
+			System.arraycopy(before, 0, entry.getValue().getpage(), 0, before.length);
+		}
+		System.arraycopy(headerBefore, 0, headerPage.getpage(), 0, headerBefore.length);
+		try
+		{
+			if (begun)
+			{
+				out.writeByte(ABORT);
+				out.writeLong(operation);
+				size += 9;
+			}
+			for (int i = held.size() - 1; i >= heldBefore; i--)
+			{
+				SystemDefs.JavabaseBM.unpinPage(held.get(i), true);
+				held.remove(i);
+			}
+			forcedHeld = Math.min(forcedHeld, held.size());
+		}
+		catch (IOException | ReplacerException | PageUnpinnedException | HashEntryNotFoundException
+				| InvalidFrameNumberException e)
+		{	e.printStackTrace();	}
+		end();
+		return allocated;
+	}
+
+	/**
+	 * forget the state of the current operation
+	 */
+	private void end()
+	{
+		operation = 0;
+		begun = false;
+		beforeImages.clear();
+		pages.clear();
+		logged.clear();
+		allocations.clear();
+	}
+
+	/**
+	 * flush the log to the file and the file to the disk
+	 */
+	synchronized void force() throws IOException
+	{
+		out.flush();
+		file.getFD().sync();
+		pending = 0;
+		forcedHeld = held.size();
+	}
+
+	/**
+	 * unpin the held pages whose records are forced
+	 */
+	private void releaseForced()
+	{
+		try
+		{
+			for (int i = 0; i < forcedHeld; i++)
+			{	SystemDefs.JavabaseBM.unpinPage(held.get(i), true);	}
+		}
+		catch (ReplacerException | PageUnpinnedException | HashEntryNotFoundException
+				| InvalidFrameNumberException e)
+		{	e.printStackTrace();	}
+		held.subList(0, forcedHeld).clear();
+		forcedHeld = 0;
+	}
+
+	private void writeBegin() throws IOException
+	{
+		if (begun)	return;
+		out.writeByte(BEGIN);
+		out.writeLong(operation);
+		size += 9;
+		begun = true;
+	}
+
+	private void writeImage(byte type, int pid, byte[] image) throws IOException
+	{
+		writeBegin();
+		out.writeByte(type);
+		out.writeLong(operation);
+		out.writeInt(pid);
+		out.writeInt(image.length);
+		out.write(image);
+		size += 17 + image.length;
+	}
+
+	/**
+	 * write every page changed since the last checkpoint to the disk and empty the log.
+	 */
+	synchronized void checkpoint()
+	{
+		if (operation != 0)	return;
+		try
+		{
+			if (pending > 0 || !held.isEmpty())
+			{
+				force();
+				releaseForced();
+			}
+			for (int pid : touched)
+			{
+				PageId pageId = new PageId(pid);
+				if (headerPageId != null && pid == headerPageId.pid)
+				{
+					SystemDefs.JavabaseDB.write_page(pageId, headerPage);
+					continue;
+				}
+				Page page = new Page();
+				SystemDefs.JavabaseBM.pinPage(pageId, page, false);
+				SystemDefs.JavabaseDB.write_page(pageId, page);
+				SystemDefs.JavabaseBM.unpinPage(pageId, false);
+			}
+			touched.clear();
+			truncate();
+		}
+		catch (IOException | InvalidPageNumberException | FileIOException | ReplacerException
+				| HashOperationException | PageUnpinnedException | InvalidFrameNumberException
+				| PageNotReadException | BufferPoolExceededException | PagePinnedException
+				| BufMgrException | HashEntryNotFoundException e)
+		{	e.printStackTrace();	}
+	}
+
+	private void truncate() throws IOException
+	{
+		out.flush();
+		file.getChannel().truncate(0);
+		file.getFD().sync();
+		size = 0;
+	}
+
+	/**
+	 * bring the pages of the tree back to a consistent state after a crash:
+	 * redo the committed operations, undo the one that did not commit. The
+	 * restored pages are written to the disk, the pages the undone operation
+	 * allocated are given back to the database and the log is emptied.
+	 * Must run before the header page is pinned.
+	 */
+	void recover()
+	{
+		if (size == 0)	return;
+		List<byte[]> images = new ArrayList<byte[]>();
+		List<long[]> records = new ArrayList<long[]>(); // type, operation, pid
+		List<long[]> allocated = new ArrayList<long[]>(); // operation, pid
+		Set<Long> committed = new HashSet<Long>();
+		Set<Long> aborted = new HashSet<Long>(); // undone before the crash, their pages given back
+		try
+		{
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+			try
+			{
+				while (true)
+				{
+					byte type = in.readByte();
+					long op = in.readLong();
+					lastOperation = Math.max(lastOperation, op);
+					if (type == COMMIT)	committed.add(op);
+					if (type == ABORT)	aborted.add(op);
+					if (type == ALLOCATE)	allocated.add(new long[] { op, in.readInt() });
+					if (type == BEFORE || type == AFTER)
+					{
+						int pid = in.readInt();
+						byte[] image = new byte[in.readInt()];
+						in.readFully(image);
+						records.add(new long[] { type, op, pid });
+						images.add(image);
+					}
+				}
+			}
+			catch (EOFException e)
+			{	/* end of the log, possibly a torn last record */	}
+			finally
+			{	in.close();	}
+
+			// redo
+			for (int i = 0; i < records.size(); i++)
+			{
+				long[] record = records.get(i);
+				if (record[0] == AFTER && committed.contains(record[1]))
+					restore((int) record[2], images.get(i));
+			}
+			// undo, latest first
+			for (int i = records.size() - 1; i >= 0; i--)
+			{
+				long[] record = records.get(i);
+				if (record[0] == BEFORE && !committed.contains(record[1]) && !aborted.contains(record[1]))
+					restore((int) record[2], images.get(i));
+			}
+			for (long[] allocation : allocated)
+			{
+				if (!committed.contains(allocation[0]) && !aborted.contains(allocation[0]))
+					SystemDefs.JavabaseBM.freePage(new PageId((int) allocation[1]));
+			}
+			truncate();
+		}
+		catch (IOException | InvalidPageNumberException | FileIOException | ReplacerException
+				| HashOperationException | PageUnpinnedException | InvalidFrameNumberException
+				| PageNotReadException | BufferPoolExceededException | PagePinnedException
+				| BufMgrException | HashEntryNotFoundException | InvalidBufferException | DiskMgrException e)
+		{	e.printStackTrace();	}
+	}
+
+	private void restore(int pid, byte[] image) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, InvalidPageNumberException, FileIOException
+	{
+		PageId pageId = new PageId(pid);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pageId, page, false);
+		System.arraycopy(image, 0, page.getpage(), 0, image.length);
+		SystemDefs.JavabaseDB.write_page(pageId, page);
+		SystemDefs.JavabaseBM.unpinPage(pageId, true);
+	}
+
+	void close()
+	{
+		closed = true;
+		if (flusher != null)
+		{
+			flusher.interrupt();
+			try
+			{	flusher.join();	}
+			catch (InterruptedException e)
+			{	e.printStackTrace();	}
+			flusher = null;
+		}
+		try
+		{	out.close();	}
+		catch (IOException e)
+		{	e.printStackTrace();	}
+	}
+
+	/**
+	 * close and remove the log file
+	 */
+	void delete()
+	{
+		close();
+		path.delete();
+	}
+}
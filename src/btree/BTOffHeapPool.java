@@ -0,0 +1,106 @@
+package btree;
+
+import global.GlobalConst;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * BTOffHeapPool is a pool of page frames allocated outside the Java heap
+ * with direct ByteBuffers, in chunks of PAGES_PER_CHUNK pages, so the pages
+ * kept there add nothing to the work of the garbage collector. Released
+ * frames are reused before a new chunk is allocated, the frames of the
+ * first chunks first, and a chunk whose frames are all released is dropped
+ * so its memory goes back to the system. The frames are read in place
+ * through BTPageView.
+ *
+ * @author MaTrix
+ *
+ */
+class BTOffHeapPool implements GlobalConst
+{
+	// 1 MB per chunk with 1 KB pages
+	private static final int PAGES_PER_CHUNK = 1024;
+
+	// the chunks by number, null for a chunk dropped
+	private List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+	// the free frames of each chunk
+	private List<Deque<Integer>> free = new ArrayList<Deque<Integer>>();
+	private int used; // frames in use
+
+	/**
+	 * @return - a free frame, the pool grows by one chunk if there is none
+	 */
+	int allocate()
+	{
+		int chunk = 0;
+		while (chunk < chunks.size() && (chunks.get(chunk) == null || free.get(chunk).isEmpty()))	chunk++;
+		if (chunk == chunks.size())
+		{
+			// the first dropped chunk, else a new one
+			chunk = chunks.indexOf(null);
+			if (chunk < 0)
+			{
+				chunk = chunks.size();
+				chunks.add(null);
+				free.add(new ArrayDeque<Integer>());
+			}
+			chunks.set(chunk, ByteBuffer.allocateDirect(PAGES_PER_CHUNK * MAX_SPACE));
+			// hand out the frames of the new chunk in order
+			for (int frame = 0; frame < PAGES_PER_CHUNK; frame++)
+			{	free.get(chunk).add(chunk * PAGES_PER_CHUNK + frame);	}
+		}
+		used++;
+		return free.get(chunk).poll();
+	}
+
+	void release(int frame)
+	{
+		int chunk = frame / PAGES_PER_CHUNK;
+		used--;
+		Deque<Integer> frames = free.get(chunk);
+		frames.push(frame);
+		if (frames.size() == PAGES_PER_CHUNK)
+		{
+			// nothing left in the chunk: the buffer is freed with its last reference
+			frames.clear();
+			chunks.set(chunk, null);
+		}
+	}
+
+	/**
+	 * a view of the page in the frame
+	 * @param keyType - the key type of the tree the page belongs to. Input parameter.
+	 */
+	BTPageView view(int frame, int keyType)
+	{
+		return new BTPageView(chunks.get(frame / PAGES_PER_CHUNK), (frame % PAGES_PER_CHUNK) * MAX_SPACE, keyType);
+	}
+
+	/**
+	 * copy the page in the frame out of the pool
+	 */
+	void read(int frame, byte[] page)
+	{
+		view(frame, 0).read(page);
+	}
+
+	/**
+	 * copy a page into the frame
+	 */
+	void write(int frame, byte[] page)
+	{
+		view(frame, 0).write(page);
+	}
+
+	/**
+	 * number of frames in use
+	 */
+	int size()
+	{
+		return used;
+	}
+}
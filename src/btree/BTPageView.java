@@ -0,0 +1,190 @@
+package btree;
+
+import global.AttrType;
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * BTPageView reads a B+ tree page in place from a ByteBuffer, e.g. a direct
+ * buffer outside the Java heap or a mapped file, with the layout of
+ * heap.HFPage. Unlike BTLeafPage and BTIndexPage it does not need the page
+ * in a byte array and does not copy records out to read their keys, page
+ * ids and record ids. The view can be moved to another page to avoid
+ * creating one view per page.
+ *
+ * @author MaTrix
+ *
+ */
+class BTPageView implements GlobalConst
+{
+	// the layout of heap.HFPage
+	private static final int SLOT_CNT = 0;
+	private static final int TYPE = 6;
+	private static final int PREV_PAGE = 8;
+	private static final int NEXT_PAGE = 12;
+	private static final int CUR_PAGE = 16;
+
+	private ByteBuffer buffer;
+	private int base;
+	private int keyType;
+
+	/**
+	 * @param buffer - the buffer holding the page. Input parameter.
+	 * @param base - offset of the page in the buffer. Input parameter.
+	 * @param keyType - the key type of the tree. Input parameter.
+	 */
+	BTPageView(ByteBuffer buffer, int base, int keyType)
+	{
+		this.buffer = buffer;
+		this.base = base;
+		this.keyType = keyType;
+	}
+
+	/**
+	 * look at another page of the same buffer
+	 */
+	void moveTo(int base)
+	{
+		this.base = base;
+	}
+
+	short getType()
+	{
+		return buffer.getShort(base + TYPE);
+	}
+
+	int getSlotCnt()
+	{
+		return buffer.getShort(base + SLOT_CNT);
+	}
+
+	int getPrevPage()
+	{
+		return buffer.getInt(base + PREV_PAGE);
+	}
+
+	int getNextPage()
+	{
+		return buffer.getInt(base + NEXT_PAGE);
+	}
+
+	int getCurPage()
+	{
+		return buffer.getInt(base + CUR_PAGE);
+	}
+
+	int getSlotLength(int slot)
+	{
+		return buffer.getShort(base + HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT);
+	}
+
+	/**
+	 * @return - offset of the record in the buffer, not in the page
+	 */
+	int getSlotOffset(int slot)
+	{
+		return base + buffer.getShort(base + HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2);
+	}
+
+	/**
+	 * length of the data after the key: a page id in index pages, a record id in leaves
+	 */
+	private int dataLength()
+	{
+		return getType() == NodeType.INDEX ? 4 : 8;
+	}
+
+	/**
+	 * the child page of an index record
+	 */
+	int getChild(int slot)
+	{
+		return buffer.getInt(getSlotOffset(slot) + getSlotLength(slot) - 4);
+	}
+
+	/**
+	 * the record id of a leaf record
+	 */
+	RID getRid(int slot)
+	{
+		int end = getSlotOffset(slot) + getSlotLength(slot);
+		return new RID(new PageId(buffer.getInt(end - 8)), buffer.getInt(end - 4));
+	}
+
+	KeyClass getKey(int slot) throws IOException, KeyNotMatchException
+	{
+		int offset = getSlotOffset(slot);
+		if (keyType == AttrType.attrInteger)	return new IntegerKey(buffer.getInt(offset));
+		if (keyType == AttrType.attrString)	return new StringKey(getString(slot));
+		throw new KeyNotMatchException(null, "unknown key type");
+	}
+
+	/**
+	 * compare the key of a record with the given key, in the order of BT.keyCompare
+	 */
+	int compareKey(int slot, KeyClass key) throws IOException, KeyNotMatchException
+	{
+		if (keyType == AttrType.attrInteger && key instanceof IntegerKey)
+			return Integer.compare(buffer.getInt(getSlotOffset(slot)), ((IntegerKey) key).getKey());
+		if (keyType == AttrType.attrString && key instanceof StringKey)
+			return getString(slot).compareTo(((StringKey) key).getKey());
+		throw new KeyNotMatchException(null, "key types do not match");
+	}
+
+	private String getString(int slot) throws IOException
+	{
+		// only the key bytes are copied to decode the string
+		int offset = getSlotOffset(slot);
+		int length = getSlotLength(slot) - dataLength();
+		byte[] bytes = new byte[length];
+		ByteBuffer record = buffer.duplicate();
+		record.position(offset);
+		record.get(bytes);
+		return Convert.getStrValue(0, bytes, length);
+	}
+
+	/**
+	 * binary search on the sorted slots of the page.
+	 * @param key - the key to look for. Input parameter.
+	 * @param after - true: number of records with a key <= key, false: with a key < key. Input parameter.
+	 */
+	int search(KeyClass key, boolean after) throws IOException, KeyNotMatchException
+	{
+		int low = 0;
+		int high = getSlotCnt();
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			int compare = compareKey(middle, key);
+			if (compare < 0 || (after && compare == 0))	low = middle + 1;
+			else high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * copy the page out of the buffer
+	 */
+	void read(byte[] page)
+	{
+		ByteBuffer copy = buffer.duplicate();
+		copy.position(base);
+		copy.get(page, 0, MAX_SPACE);
+	}
+
+	/**
+	 * copy a page into the buffer
+	 */
+	void write(byte[] page)
+	{
+		ByteBuffer copy = buffer.duplicate();
+		copy.position(base);
+		copy.put(page, 0, MAX_SPACE);
+	}
+}
@@ -0,0 +1,211 @@
+package btree;
+
+import global.PageId;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BTPinTracker keeps the account of the pins a B+ tree takes through
+ * BTreeFile.pinPage and gives back through BTreeFile.unpinPage. A pin has a
+ * scope: the operation that took it, or the scan whose current leaf it is.
+ * After an operation the tree should hold no pins but the leaves of its open
+ * scans; the pins beyond them have outlived their scope and are reported once.
+ *
+ * The scans (BTFileScan and the spliterators of the streams) are held
+ * through weak references: a scan dropped without being closed is found
+ * when it is garbage collected, and the tree gives back the pin of its leaf. With tracing on, the stack of every pin and of every scan
+ * is recorded, so the reports show where a leaked pin was taken; tracing
+ * costs a stack trace per pin and is meant for debugging.
+ *
+ * @author MaTrix
+ *
+ */
+class BTPinTracker
+{
+	private boolean tracing;
+
+	// pins not given back yet, by page id
+	private Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+	// where they were taken, the latest last, when tracing
+	private Map<Integer, Deque<Throwable>> origins = new HashMap<Integer, Deque<Throwable>>();
+	private int outstanding; // all the pins not given back
+	private int leaked; // the pins beyond the scans already reported
+
+	private Set<ScanPin> scans = new HashSet<ScanPin>();
+	private ReferenceQueue<Object> dropped = new ReferenceQueue<Object>();
+	private int held; // leaves held by the scans
+
+	/**
+	 * the pin of the current leaf of a scan
+	 */
+	static class ScanPin extends WeakReference<Object>
+	{
+		private PageId leaf; // null if the scan holds no leaf
+		private Throwable origin; // where the scan was opened, when tracing
+
+		ScanPin(Object scan, ReferenceQueue<Object> queue, Throwable origin)
+		{
+			super(scan, queue);
+			this.origin = origin;
+		}
+	}
+
+	/**
+	 * @param tracing - true to record where every pin is taken. Input parameter.
+	 */
+	void setTracing(boolean tracing)
+	{
+		this.tracing = tracing;
+		if (!tracing)	origins.clear();
+	}
+
+	void pinned(int pid)
+	{
+		outstanding++;
+		Integer count = counts.get(pid);
+		counts.put(pid, count == null ? 1 : count + 1);
+		if (tracing)
+		{
+			Deque<Throwable> stack = origins.get(pid);
+			if (stack == null)
+			{
+				stack = new ArrayDeque<Throwable>();
+				origins.put(pid, stack);
+			}
+			stack.add(new Throwable("page " + pid + " pinned here"));
+		}
+	}
+
+	void unpinned(int pid)
+	{
+		outstanding--;
+		Integer count = counts.get(pid);
+		int total = (count == null ? 0 : count) - 1;
+		if (total == 0)	counts.remove(pid);
+		else counts.put(pid, total);
+		Deque<Throwable> stack = origins.get(pid);
+		if (stack != null)
+		{
+			stack.pollLast();
+			if (stack.isEmpty())	origins.remove(pid);
+		}
+	}
+
+	/**
+	 * start tracking the leaf of a new scan
+	 * @param scan - a BTFileScan or a BTSpliterator. Input parameter.
+	 */
+	ScanPin opened(Object scan)
+	{
+		ScanPin pin = new ScanPin(scan, dropped, tracing ? new Throwable("scan opened here") : null);
+		scans.add(pin);
+		return pin;
+	}
+
+	/**
+	 * @param leaf - the leaf the scan keeps pinned now, null for none. Input parameter.
+	 */
+	void holding(ScanPin pin, PageId leaf)
+	{
+		if (pin.leaf == null && leaf != null)	held++;
+		if (pin.leaf != null && leaf == null)	held--;
+		pin.leaf = leaf;
+	}
+
+	/**
+	 * @return - true if an open scan keeps the page pinned as its leaf
+	 */
+	boolean held(PageId pageId)
+	{
+		if (held == 0)	return false;
+		for (ScanPin pin : scans)
+		{
+			if (pin.leaf != null && pin.leaf.pid == pageId.pid && pin.get() != null)	return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return - true if some open scan keeps a leaf pinned
+	 */
+	boolean holding()
+	{
+		return held > 0;
+	}
+
+	void closed(ScanPin pin)
+	{
+		holding(pin, null);
+		scans.remove(pin);
+	}
+
+	/**
+	 * forget the scans garbage collected without being closed.
+	 * @return - the leaves they kept pinned, for the caller to unpin
+	 */
+	List<PageId> dropped()
+	{
+		List<PageId> leaves = new ArrayList<PageId>();
+		ScanPin pin;
+		while ((pin = (ScanPin) dropped.poll()) != null)
+		{
+			if (!scans.remove(pin) || pin.leaf == null)	continue;
+			System.err.println("scan dropped without being closed, releasing leaf " + pin.leaf.pid);
+			if (pin.origin != null)	pin.origin.printStackTrace();
+			leaves.add(pin.leaf);
+			holding(pin, null);
+		}
+		return leaves;
+	}
+
+	/**
+	 * report the pins beyond the leaves of the scans at the end of an operation
+	 * @param operation - name of the operation, for the report. Input parameter.
+	 */
+	void check(String operation)
+	{
+		int beyond = outstanding - held;
+		if (beyond > leaked)
+		{
+			for (Map.Entry<Integer, Integer> entry : unscoped().entrySet())
+			{
+				if (entry.getValue() <= 0)	continue;
+				System.err.println("page " + entry.getKey() + ": " + entry.getValue() + " pin(s) still held after "
+						+ operation + (tracing ? "" : ", track the pins to see where they were taken"));
+				Deque<Throwable> stack = origins.get(entry.getKey());
+				if (stack != null)
+				{
+					for (Throwable origin : stack)
+					{	origin.printStackTrace();	}
+				}
+			}
+		}
+		leaked = Math.max(0, beyond);
+	}
+
+	/**
+	 * @return - the pins not given back, less the leaves of the open scans, by
+	 * 			 page id; negative if a page was unpinned more often than pinned
+	 */
+	Map<Integer, Integer> unscoped()
+	{
+		Map<Integer, Integer> pins = new HashMap<Integer, Integer>(counts);
+		for (ScanPin pin : scans)
+		{
+			// a scan garbage collected but not yet polled holds a leaked pin
+			if (pin.leaf == null || pin.get() == null)	continue;
+			Integer count = pins.get(pin.leaf.pid);
+			pins.put(pin.leaf.pid, (count == null ? 0 : count) - 1);
+		}
+		return pins;
+	}
+}
@@ -0,0 +1,259 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * BTPublisher publishes the entries of a key range of a B+ tree to every
+ * subscriber, in key order, as far as the subscriber has asked for them.
+ * Unlike BTFileScan it holds no pin while the subscriber is slow: each batch
+ * of at most batchSize entries is copied out of the leaves under the lock of
+ * the BTreeFile, each leaf pinned only while it is read, and then delivered
+ * on the executor without any page pinned.
+ *
+ * Between two batches a subscription remembers the leaf and the position in
+ * it where it stopped. If the tree changed in between, the leaf may have
+ * been split or freed, so the subscription goes down from the root again to
+ * the last key it delivered and skips the duplicates of that key it has
+ * already delivered: up to the entry with the last record id, or as many
+ * as it delivered if that entry was deleted.
+ *
+ * @author MaTrix
+ *
+ */
+class BTPublisher implements Flow.Publisher<KeyDataEntry>, GlobalConst
+{
+	static final int DEFAULT_BATCH_SIZE = 256;
+
+	private BTreeFile btree;
+	private KeyClass low;
+	private KeyClass high;
+	private Executor executor;
+	private int batchSize;
+
+	/**
+	 * @param lo - lower bound, null for no lower bound. Input parameter.
+	 * @param hi - upper bound (included), null for no upper bound. Input parameter.
+	 * @param executor - runs the deliveries to the subscribers. Input parameter.
+	 * @param batchSize - most entries read under one lock. Input parameter.
+	 */
+	BTPublisher(BTreeFile btree, KeyClass lo, KeyClass hi, Executor executor, int batchSize)
+	{
+		this.btree = btree;
+		this.low = lo;
+		this.high = hi;
+		this.executor = executor;
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super KeyDataEntry> subscriber)
+	{
+		if (subscriber == null)	throw new NullPointerException();
+		Subscription subscription = new Subscription(subscriber);
+		subscriber.onSubscribe(subscription);
+	}
+
+	private class Subscription implements Flow.Subscription, Runnable
+	{
+		private Flow.Subscriber<? super KeyDataEntry> subscriber;
+		private AtomicLong demand = new AtomicLong();
+		private AtomicInteger work = new AtomicInteger(); // drains asked for, the first one runs them
+		private volatile boolean cancelled;
+		private volatile Throwable error; // a request that broke the rules
+
+		private Deque<KeyDataEntry> batch = new ArrayDeque<KeyDataEntry>();
+		private boolean done; // every entry of the range is read
+		private PageId leafId; // where the next batch starts, null to go down from the root
+		private int position; // entries of that leaf already read
+		private int modifications; // of the tree when the position was taken
+		private KeyClass lastKey; // the last key read
+		private RID lastRid; // the record id of the last entry read
+		private int duplicates; // entries with the last key read
+
+		private long startedAt = System.nanoTime(); // for the metrics of the tree
+		private int leavesVisited;
+
+		Subscription(Flow.Subscriber<? super KeyDataEntry> subscriber)
+		{
+			this.subscriber = subscriber;
+			synchronized (btree)
+			{	btree.getMetrics().opened(false);	}
+		}
+
+		@Override
+		public void request(long n)
+		{
+			if (n <= 0)	error = new IllegalArgumentException("non-positive request " + n);
+			else
+			{
+				long current;
+				do
+				{	current = demand.get();	}
+				while (!demand.compareAndSet(current, (current + n < 0) ? Long.MAX_VALUE : current + n));
+			}
+			drain();
+		}
+
+		@Override
+		public void cancel()
+		{
+			cancelled = true;
+			drain();
+		}
+
+		private void drain()
+		{
+			if (work.getAndIncrement() == 0)	executor.execute(this);
+		}
+
+		/**
+		 * deliver what the subscriber asked for, one drain at a time
+		 */
+		@Override
+		public void run()
+		{
+			int missed = 1;
+			do
+			{
+				while (!cancelled)
+				{
+					if (error != null)
+					{
+						cancelled = true;
+						subscriber.onError(error);
+						break;
+					}
+					if (batch.isEmpty() && done)
+					{
+						cancelled = true;
+						finished();
+						subscriber.onComplete();
+						break;
+					}
+					if (demand.get() == 0)	break;
+					if (batch.isEmpty())
+					{
+						synchronized (btree)
+						{	read((int) Math.min(batchSize, demand.get()));	}
+						continue;
+					}
+					demand.decrementAndGet();
+					subscriber.onNext(batch.poll());
+				}
+				missed = work.addAndGet(-missed);
+			}
+			while (missed != 0);
+		}
+
+		/**
+		 * copy at most limit entries from the position into the batch, the caller holds the lock
+		 */
+		private void read(int limit)
+		{
+			try
+			{
+				if (btree.getHeaderPage() == null)
+				{
+					error = new IllegalStateException("the file is closed");
+					return;
+				}
+				boolean descended = leafId == null || btree.getModifications() != modifications;
+				if (descended)
+				{
+					// the first batch, or the tree changed: down to the last key read
+					leafId = btree.leafFor(lastKey == null ? low : lastKey);
+					position = 0;
+				}
+				// the entries with the last key already read, up to the last record id
+				int skip = (descended && lastKey != null) ? btree.returnedDuplicates(lastKey, lastRid, duplicates) : 0;
+				while (batch.size() < limit && !done)
+				{
+					HFPage page = new HFPage();
+					btree.pinPageForScan(leafId, page);
+					leavesVisited++;
+					BTLeafPage leaf = new BTLeafPage(page, btree.getHeaderPage().get_keyType());
+					int index = 0;
+					RID iteratorRecord = new RID();
+					KeyDataEntry entry = leaf.getFirst(iteratorRecord);
+					for (; entry != null && batch.size() < limit && !done; entry = leaf.getNext(iteratorRecord), index++)
+					{
+						if (index < position)	continue;
+						position = index + 1;
+						if (descended && !after(entry.key))	continue;
+						if (descended && lastKey != null && BT.keyCompare(entry.key, lastKey) == 0 && skip > 0)
+						{
+							skip--;
+							continue;
+						}
+						descended = false;
+						if (high != null && BT.keyCompare(entry.key, high) > 0)	done = true;
+						else add(entry);
+					}
+					PageId nextId = leaf.getNextPage();
+					btree.unpinPage(leafId, false);
+					if (entry == null && !done)
+					{
+						// the leaf is read to the end
+						if (nextId.pid == INVALID_PAGE)	done = true;
+						leafId = nextId;
+						position = 0;
+					}
+				}
+				modifications = btree.getModifications();
+			}
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+					| KeyNotMatchException e)
+			{	error = e;	}
+		}
+
+		/**
+		 * @return - false for a key before the position, when going down again
+		 */
+		private boolean after(KeyClass key) throws KeyNotMatchException
+		{
+			KeyClass from = (lastKey == null) ? low : lastKey;
+			return from == null || BT.keyCompare(key, from) >= 0;
+		}
+
+		private void add(KeyDataEntry entry) throws KeyNotMatchException
+		{
+			batch.add(entry);
+			if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0)	duplicates++;
+			else
+			{
+				lastKey = entry.key;
+				duplicates = 1;
+			}
+			lastRid = ((LeafData) entry.data).getData();
+		}
+
+		private void finished()
+		{
+			synchronized (btree)
+			{	btree.getMetrics().closed(false, System.nanoTime() - startedAt, leavesVisited);	}
+		}
+	}
+}
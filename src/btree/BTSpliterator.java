@@ -0,0 +1,340 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * BTSpliterator walks the leaf chain of a B+ tree over a key range like
+ * BTFileScan, for BTreeFile.stream. It reads one leaf at a time: the entries
+ * of the leaf in the range are copied out while the leaf stays pinned for
+ * its next link, and the pin is given back when the next leaf is read, at
+ * the end of the range or when the stream is closed. If the tree changed
+ * since the last leaf was read, a split may have moved its entries to the
+ * next leaf: the next leaf is then found by going down from the root to the
+ * last key read, after the entries with that key already read, like
+ * BTreeFile.resume_scan.
+ *
+ * trySplit cuts the range at a separator of the highest index page that has
+ * one inside it, so the parts of a parallel stream cover about the same
+ * number of subtrees. The parts run on different threads and the buffer
+ * manager is not thread safe, so every access to the pages holds the lock
+ * of the BTreeFile; writers running beside the stream must hold it too.
+ *
+ * @author MaTrix
+ *
+ */
+class BTSpliterator implements Spliterator<KeyDataEntry>, GlobalConst
+{
+	private BTreeFile btree;
+	private int keyType;
+	private KeyClass low; // the first key of the range, null for no lower bound
+	private KeyClass high; // the last key of the range, null for no upper bound
+	private boolean highInclusive; // false when the range ends before high, after a split
+	// this spliterator and the ones split from it, closed together with the stream
+	private List<BTSpliterator> family;
+
+	private boolean started;
+	private boolean done;
+	private BTLeafPage leaf; // the pinned leaf, null if none
+	private BTPinTracker.ScanPin pin;
+	private Deque<KeyDataEntry> batch = new ArrayDeque<KeyDataEntry>();
+	private long estimate = -1;
+
+	private int modifications; // of the tree when the last leaf was read
+	private KeyClass lastKey; // the last key read, null if none
+	private RID lastRid; // the record id of the last entry read
+	private int duplicates; // entries read with the last key
+	private int skip = -1; // entries with the last key still to skip after going down again, -1 if none
+
+	private long startedAt; // for the metrics of the tree
+	private int leavesVisited;
+
+	/**
+	 * @param lo - lower bound, null for no lower bound. Input parameter.
+	 * @param hi - upper bound (included), null for no upper bound. Input parameter.
+	 */
+	BTSpliterator(BTreeFile btree, KeyClass lo, KeyClass hi)
+	{
+		this(btree, lo, hi, true, Collections.synchronizedList(new ArrayList<BTSpliterator>()));
+	}
+
+	private BTSpliterator(BTreeFile btree, KeyClass lo, KeyClass hi, boolean highInclusive,
+			List<BTSpliterator> family)
+	{
+		this.btree = btree;
+		this.keyType = btree.getHeaderPage().get_keyType();
+		this.low = lo;
+		this.high = hi;
+		this.highInclusive = highInclusive;
+		this.family = family;
+		family.add(this);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super KeyDataEntry> action)
+	{
+		if (batch.isEmpty() && !done)
+		{
+			synchronized (btree)
+			{	fill();	}
+		}
+		if (batch.isEmpty())	return false;
+		action.accept(batch.poll());
+		return true;
+	}
+
+	/**
+	 * read the next leaf with entries in the range, the caller holds the lock
+	 */
+	private void fill()
+	{
+		try
+		{
+			while (batch.isEmpty() && !done)
+			{
+				if (!started)
+				{
+					started = true;
+					startedAt = System.nanoTime();
+					pin = btree.getPins().opened(this);
+					btree.getMetrics().opened(false);
+					PageId leafId = btree.leafFor(low);
+					leaf = new BTLeafPage(pinned(leafId), keyType);
+				}
+				else if (btree.getModifications() != modifications && lastKey != null)
+				{
+					// the leaf may have been split or merged: down to the last key read
+					unpin();
+					skip = btree.returnedDuplicates(lastKey, lastRid, duplicates);
+					leaf = new BTLeafPage(pinned(btree.leafFor(lastKey)), keyType);
+				}
+				else
+				{
+					PageId nextId = leaf.getNextPage();
+					unpin();
+					if (nextId.pid == INVALID_PAGE)
+					{
+						finish();
+						return;
+					}
+					leaf = new BTLeafPage(pinned(nextId), keyType);
+				}
+				leavesVisited++;
+				read();
+				modifications = btree.getModifications();
+			}
+		}
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e)
+		{
+			e.printStackTrace();
+			finish();
+		}
+	}
+
+	/**
+	 * copy the entries of the leaf in the range into the batch
+	 */
+	private void read() throws KeyNotMatchException
+	{
+		RID iteratorRecord = new RID();
+		for (KeyDataEntry entry = leaf.getFirst(iteratorRecord); entry != null; entry = leaf.getNext(iteratorRecord))
+		{
+			if (low != null && BT.keyCompare(entry.key, low) < 0)	continue;
+			if (lastKey != null && skip >= 0)
+			{
+				// going down again: past the keys before the last key and the entries already read
+				int compare = BT.keyCompare(entry.key, lastKey);
+				if (compare < 0)	continue;
+				if (compare == 0 && skip > 0)
+				{
+					skip--;
+					continue;
+				}
+				skip = -1;
+			}
+			if (high != null)
+			{
+				int compare = BT.keyCompare(entry.key, high);
+				if (compare > 0 || (compare == 0 && !highInclusive))
+				{
+					finish();
+					return;
+				}
+			}
+			batch.add(entry);
+			if (lastKey != null && BT.keyCompare(entry.key, lastKey) == 0)	duplicates++;
+			else
+			{
+				lastKey = entry.key;
+				duplicates = 1;
+			}
+			lastRid = ((LeafData) entry.data).getData();
+		}
+	}
+
+	private HFPage pinned(PageId pageId) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException
+	{
+		HFPage page = new HFPage();
+		btree.pinPageForScan(pageId, page);
+		btree.getPins().holding(pin, pageId);
+		return page;
+	}
+
+	private void unpin() throws ReplacerException, PageUnpinnedException, HashEntryNotFoundException,
+			InvalidFrameNumberException, IOException
+	{
+		if (leaf == null)	return;
+		btree.unpinPage(leaf.getCurPage(), false);
+		btree.getPins().holding(pin, null);
+		leaf = null;
+	}
+
+	/**
+	 * the range is cut at the middle separator inside it of the highest index
+	 * page that has one: this spliterator keeps the keys from the separator on,
+	 * the new one takes the keys before it. A spliterator that has started
+	 * reading is not split.
+	 */
+	@Override
+	public Spliterator<KeyDataEntry> trySplit()
+	{
+		if (started || done)	return null;
+		KeyClass separator;
+		synchronized (btree)
+		{
+			if (btree.getHeaderPage() == null)	return null;
+			separator = separator();
+		}
+		if (separator == null)	return null;
+		BTSpliterator prefix = new BTSpliterator(btree, low, separator, false, family);
+		low = separator;
+		estimate = -1;
+		return prefix;
+	}
+
+	private KeyClass separator()
+	{
+		try
+		{
+			PageId pageId = btree.getHeaderPage().get_rootId();
+			while (true)
+			{
+				HFPage page = new HFPage();
+				btree.pinPageForScan(pageId, page);
+				if (page.getType() != NodeType.INDEX)
+				{
+					btree.unpinPage(pageId, false);
+					return null;
+				}
+				BTIndexPage indexPage = new BTIndexPage(page, keyType);
+				List<KeyClass> inside = new ArrayList<KeyClass>();
+				RID iteratorRecord = new RID();
+				for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord); entry != null;
+						entry = indexPage.getNext(iteratorRecord))
+				{
+					if (low != null && BT.keyCompare(entry.key, low) <= 0)	continue;
+					if (high != null)
+					{
+						int compare = BT.keyCompare(entry.key, high);
+						if (compare > 0 || (compare == 0 && !highInclusive))	break;
+					}
+					inside.add(entry.key);
+				}
+				PageId childId = btree.childFor(indexPage, low);
+				btree.unpinPage(pageId, false);
+				if (!inside.isEmpty())	return inside.get(inside.size() / 2);
+				// the whole range is under one child
+				pageId = childId;
+			}
+		}
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e)
+		{	e.printStackTrace();	}
+		return null;
+	}
+
+	@Override
+	public long estimateSize()
+	{
+		if (done)	return batch.size();
+		if (estimate < 0)
+		{
+			synchronized (btree)
+			{	estimate = btree.estimateRangeCount(low, high);	}
+		}
+		return estimate;
+	}
+
+	@Override
+	public int characteristics()
+	{
+		return ORDERED | NONNULL;
+	}
+
+	/**
+	 * no more leaves to read, give back the pin
+	 */
+	private void finish()
+	{
+		if (done)	return;
+		done = true;
+		try
+		{
+			unpin();
+		}
+		catch (ReplacerException | PageUnpinnedException | HashEntryNotFoundException
+				| InvalidFrameNumberException | IOException e)
+		{	e.printStackTrace();	}
+		if (started)
+		{
+			btree.getPins().closed(pin);
+			btree.getMetrics().closed(false, System.nanoTime() - startedAt, leavesVisited);
+		}
+	}
+
+	/**
+	 * close this spliterator and the ones split from it, when the stream is closed
+	 */
+	void close()
+	{
+		synchronized (btree)
+		{
+			synchronized (family)
+			{
+				for (BTSpliterator spliterator : family)
+				{
+					spliterator.finish();
+					spliterator.batch.clear();
+				}
+			}
+		}
+	}
+}
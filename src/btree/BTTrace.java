@@ -0,0 +1,107 @@
+package btree;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BTTrace records the pins and unpins of the operations of a B+ tree and
+ * writes the operations slower than a threshold to a trace file, each one
+ * followed by its page events:
+ *
+ * insert key=42 total=1834us pins=4
+ *   pin   page=17 type=INDEX hit 2us
+ *   pin   page=35 type=LEAF miss 1710us
+ *   unpin page=35 dirty 1us
+ *   ...
+ *
+ * Hits and misses are the estimate of BTreeMetrics, a miss usually costs a
+ * read of the page. Events outside of an operation are not recorded.
+ *
+ * @author MaTrix
+ *
+ */
+class BTTrace
+{
+	private PrintWriter out;
+	private long thresholdNanos;
+
+	private String operation; // null outside of an operation
+	private long start;
+	private int pins;
+	private List<String> events = new ArrayList<String>();
+
+	BTTrace(String filename) throws IOException
+	{
+		out = new PrintWriter(new FileWriter(filename, true));
+	}
+
+	/**
+	 * @param micros - write only the operations that take at least this long. Input parameter.
+	 */
+	void setThreshold(long micros)
+	{
+		thresholdNanos = micros * 1000;
+	}
+
+	/**
+	 * start recording an operation, nested operations belong to the outer one
+	 * @return - true if the operation is recorded, the caller must end it.
+	 */
+	boolean begin(String operation, KeyClass key)
+	{
+		if (this.operation != null)	return false;
+		this.operation = (key == null) ? operation : operation + " key=" + key;
+		start = System.nanoTime();
+		pins = 0;
+		events.clear();
+		return true;
+	}
+
+	void pinned(int pid, short type, boolean miss, long nanos)
+	{
+		if (operation == null)	return;
+		pins++;
+		events.add("  pin   page=" + pid + " type=" + typeName(type) + (miss ? " miss " : " hit ") + nanos / 1000 + "us");
+	}
+
+	void unpinned(int pid, boolean dirty, long nanos)
+	{
+		if (operation == null)	return;
+		events.add("  unpin page=" + pid + (dirty ? " dirty " : " ") + nanos / 1000 + "us");
+	}
+
+	void end()
+	{
+		if (operation == null)	return;
+		long total = System.nanoTime() - start;
+		if (total >= thresholdNanos)
+		{
+			out.println(operation + " total=" + total / 1000 + "us pins=" + pins);
+			for (String event : events)
+			{	out.println(event);	}
+			out.flush();
+		}
+		operation = null;
+		events.clear();
+	}
+
+	private String typeName(short type)
+	{
+		switch (type)
+		{
+		case NodeType.INDEX:	return "INDEX";
+		case NodeType.LEAF:	return "LEAF";
+		case NodeType.BTHEAD:	return "HEADER";
+		case BTreeFile.FREE_PAGE:	return "FREE";
+		default:	return Short.toString(type);
+		}
+	}
+
+	void close()
+	{
+		out.close();
+	}
+}
@@ -0,0 +1,207 @@
+package btree;
+
+import global.PageId;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+import diskmgr.Page;
+
+/**
+ * BTVersions keeps old versions of the pages of a B+ tree for snapshot scans.
+ * Every operation that changes the tree has an epoch. A snapshot taken after
+ * epoch e sees every page as it was before the first operation with an epoch
+ * greater than e changed it: the image of the page saved by that operation, or
+ * the current page if no later operation changed it.
+ *
+ * Images are only saved while a snapshot is open, once per page for all
+ * the snapshots older than the change. They are kept off the Java heap in a
+ * BTOffHeapPool. When a snapshot is released, the images no open snapshot
+ * can read any more go back to the pool.
+ *
+ * @author MaTrix
+ *
+ */
+class BTVersions
+{
+	private long epoch; // epoch of the last started operation
+	private boolean inOperation;
+
+	// open snapshots: epoch -> number of snapshots taken at it
+	private TreeMap<Long, Integer> snapshots = new TreeMap<Long, Integer>();
+	// frames of the saved images of a page by the epoch of the operation that changed it
+	private Map<Integer, TreeMap<Long, Integer>> versions = new HashMap<Integer, TreeMap<Long, Integer>>();
+	private BTOffHeapPool pool = new BTOffHeapPool();
+
+	// pages pinned by the current operation and their content at the first pin
+	private Map<Integer, Page> pages = new HashMap<Integer, Page>();
+	private Map<Integer, byte[]> beforeImages = new HashMap<Integer, byte[]>();
+
+	void begin()
+	{
+		if (inOperation)	return;
+		inOperation = true;
+		epoch++;
+	}
+
+	void end()
+	{
+		inOperation = false;
+		pages.clear();
+		beforeImages.clear();
+	}
+
+	/**
+	 * remember the content of a page the first time the operation pins it,
+	 * if a snapshot may still need it.
+	 */
+	void pinned(PageId pageId, Page page)
+	{
+		if (!inOperation || snapshots.isEmpty() || beforeImages.containsKey(pageId.pid))	return;
+		TreeMap<Long, Integer> saved = versions.get(pageId.pid);
+		// the newest snapshot already has an image of this page
+		if (saved != null && saved.lastKey() > snapshots.lastKey())	return;
+		beforeImages.put(pageId.pid, page.getpage().clone());
+		pages.put(pageId.pid, page);
+	}
+
+	/**
+	 * called before a dirty page is unpinned: keep its old image if the page changed.
+	 */
+	void unpinning(PageId pageId)
+	{
+		Page page = pages.get(pageId.pid);
+		if (page == null)	return;
+		byte[] before = beforeImages.get(pageId.pid);
+		if (Arrays.equals(before, page.getpage()))	return;
+		TreeMap<Long, Integer> saved = versions.get(pageId.pid);
+		if (saved == null)
+		{
+			saved = new TreeMap<Long, Integer>();
+			versions.put(pageId.pid, saved);
+		}
+		int frame = pool.allocate();
+		pool.write(frame, before);
+		saved.put(epoch, frame);
+		pages.remove(pageId.pid);
+	}
+
+	/**
+	 * start a snapshot of the tree as it is now
+	 */
+	Snapshot snapshot(BTreeFile btree)
+	{
+		// taken inside an operation, the snapshot sees the tree before it
+		long at = inOperation ? epoch - 1 : epoch;
+		Integer count = snapshots.get(at);
+		snapshots.put(at, count == null ? 1 : count + 1);
+		return new Snapshot(btree, at);
+	}
+
+	private void release(long at)
+	{
+		Integer count = snapshots.get(at);
+		if (count == null)	return;
+		if (count > 1)	snapshots.put(at, count - 1);
+		else snapshots.remove(at);
+
+		// an image is still needed if it is the oldest one after an open snapshot
+		Iterator<TreeMap<Long, Integer>> pageVersions = versions.values().iterator();
+		while (pageVersions.hasNext())
+		{
+			TreeMap<Long, Integer> saved = pageVersions.next();
+			Set<Long> needed = new HashSet<Long>();
+			for (long snapshot : snapshots.keySet())
+			{
+				Long version = saved.higherKey(snapshot);
+				if (version != null)	needed.add(version);
+			}
+			Iterator<Map.Entry<Long, Integer>> images = saved.entrySet().iterator();
+			while (images.hasNext())
+			{
+				Map.Entry<Long, Integer> image = images.next();
+				if (needed.contains(image.getKey()))	continue;
+				pool.release(image.getValue());
+				images.remove();
+			}
+			if (saved.isEmpty())	pageVersions.remove();
+		}
+	}
+
+	/**
+	 * number of page images kept for the open snapshots
+	 */
+	int size()
+	{
+		return pool.size();
+	}
+
+	/**
+	 * A consistent read-only view of the tree. The pages are read into private
+	 * copies, so a snapshot holds no pins between two reads.
+	 */
+	class Snapshot
+	{
+		private BTreeFile btree;
+		private long at;
+		private PageId rootId;
+		private boolean released;
+
+		private Snapshot(BTreeFile btree, long at)
+		{
+			this.btree = btree;
+			this.at = at;
+			this.rootId = new PageId(btree.getHeaderPage().get_rootId().pid);
+		}
+
+		PageId getRootId()
+		{
+			return rootId;
+		}
+
+		/**
+		 * copy of the page as the snapshot sees it
+		 */
+		Page read(PageId pageId) throws ReplacerException, HashOperationException, PageUnpinnedException,
+				InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+				PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+		{
+			TreeMap<Long, Integer> saved = versions.get(pageId.pid);
+			Map.Entry<Long, Integer> version = (saved == null) ? null : saved.higherEntry(at);
+			if (version != null)
+			{
+				Page copy = new Page();
+				pool.read(version.getValue(), copy.getpage());
+				return copy;
+			}
+
+			Page page = new Page();
+			btree.pinPage(pageId, page, false);
+			Page copy = new Page(page.getpage().clone());
+			btree.unpinPage(pageId, false);
+			return copy;
+		}
+
+		void release()
+		{
+			if (released)	return;
+			released = true;
+			BTVersions.this.release(at);
+		}
+	}
+}
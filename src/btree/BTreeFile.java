@@ -9,12 +9,30 @@ import heap.HFPage;
 import heap.InvalidSlotNumberException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import javax.management.JMException;
 
 import bufmgr.BufMgrException;
 import bufmgr.BufferPoolExceededException;
 import bufmgr.HashEntryNotFoundException;
 import bufmgr.HashOperationException;
+import bufmgr.InvalidBufferException;
 import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotFoundException;
 import bufmgr.PageNotReadException;
 import bufmgr.PagePinnedException;
 import bufmgr.PageUnpinnedException;
@@ -31,6 +49,9 @@ import diskmgr.Page;
 
 public class BTreeFile extends IndexFile implements GlobalConst {
 
+	// the node type of a page on the free list
+	static final short FREE_PAGE = 14;
+
 	// the id of the header page
 	private PageId headerPageID;
 
@@ -42,6 +63,34 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private String fileName;
 
+	// write-ahead log of the changes, null when the database has no log name
+	private BTLog log;
+
+	// old page images for the snapshot scans
+	private BTVersions versions = new BTVersions();
+
+	// the memory mapped view of the file, null if it is not mapped
+	private MappedPageStore mapped;
+
+	// index pages kept pinned for the lookups, created at the first pin
+	private BTHotPages hotPages;
+
+	// counters and latencies of the operations, created at the first use
+	private BTreeMetrics metrics;
+	private int operationPins; // pages pinned by the current operation
+	private boolean inOperation; // beginOperation was called, not yet ended or aborted
+	private int splitLevel; // level of the last split of the current insert
+
+	// the trace of the slow operations, null when tracing is off
+	private BTTrace trace;
+
+	// the pins taken by the tree and the scans holding some
+	private BTPinTracker pins = new BTPinTracker();
+	private int modifications; // number of operations that changed the tree
+
+	// the entries below each page, for the index-only aggregates
+	private BTAggregates aggregates = new BTAggregates(this);
+
 	/**
 	 * BTreeFile class an index file with given filename should already exist;
 	 * this opens it.
@@ -57,6 +106,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPageID = SystemDefs.JavabaseDB.get_file_entry(filename);
 			if(headerPageID!=null)
 			{
+				// bring the pages back to a consistent state before reading them
+				openLog();
 				// pin the page and save it in headerPage
 				SystemDefs.JavabaseBM.pinPage(headerPageID, page, false);
 				headerPage = new BTreeHeaderPage(page);
@@ -64,6 +115,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				headerPage.loadData();
 				// set page type
 				headerPage.setType(NodeType.BTHEAD);
+				if (!headerPage.hasFormat())	upgradeHeader();
 			}
 		} catch (FileIOException | InvalidPageNumberException
 				| DiskMgrException | IOException | ReplacerException
@@ -89,6 +141,33 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *            parameter.
 	 */
 	public BTreeFile(String filename, int keytype, int keysize,int delete_fashion) {
+		this(filename, keytype, keysize, delete_fashion, Durability.SYNC, 0, 0);
+	}
+
+	/**
+	 * if index file exists, open it; else create it. The changes are logged 
+	 * with the given durability mode.
+	 * 
+	 * @param filename
+	 *            - Input parameter.
+	 * @param keytype
+	 *            - the type of key. Input parameter.
+	 * @param keysize
+	 *            - the maximum size of a key. Input parameter.
+	 * @param delete_fashion
+	 *            - full delete or naive delete. You can pass zero in this
+	 *            parameter.
+	 * @param durability
+	 *            - Durability.SYNC, GROUP_COMMIT or ASYNC. Input parameter.
+	 * @param groupMillis
+	 *            - GROUP_COMMIT only: force the log at least this often, 
+	 *            0 for the default. Input parameter.
+	 * @param groupRecords
+	 *            - GROUP_COMMIT only: force the log when this many operations 
+	 *            are waiting, 0 for the default. Input parameter.
+	 */
+	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion, 
+			short durability, int groupMillis, int groupRecords) {
 		try {
 			fileName = filename;
 			Page page = new Page();
@@ -96,12 +175,15 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			headerPageID = SystemDefs.JavabaseDB.get_file_entry(filename);
 			if (headerPageID != null) // file exist
 			{
+				// bring the pages back to a consistent state before reading them
+				openLog();
 				// pin the page and save it in headerPage
 				SystemDefs.JavabaseBM.pinPage(headerPageID, page, false);
 				headerPage = new BTreeHeaderPage(page);
 				// set headerPage instances (RootPageID,TypeOfKey,LengthOfKey)
 				headerPage.loadData();
 				headerPage.setType(NodeType.BTHEAD);
+				if (!headerPage.hasFormat())	upgradeHeader();
 			} 
 			else // file doesn't exist then create it
 			{
@@ -123,7 +205,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				headerPage.insertAll(rootPageID, keytype, keysize);
 
 				headerPage.setType(NodeType.BTHEAD);
+				// pinned by newPage, not through pinPage: the pin tracker never saw it
 				SystemDefs.JavabaseBM.unpinPage(rootPageID, true);
+				openLog();
 			}
 		} catch (FileIOException | InvalidPageNumberException
 				| DiskMgrException | IOException | ReplacerException
@@ -136,6 +220,30 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				| ConstructPageException e) {
 			e.printStackTrace();
 		}
+		if (log != null)
+		{
+			if (groupMillis <= 0)	groupMillis = Durability.DEFAULT_GROUP_MILLIS;
+			if (groupRecords <= 0)	groupRecords = Durability.DEFAULT_GROUP_RECORDS;
+			log.setDurability(durability, groupMillis, groupRecords);
+		}
+	}
+
+	/**
+	 * open the log of the file, replaying it if the file was not closed cleanly.
+	 */
+	private void openLog()
+	{
+		if (SystemDefs.JavabaseLogName == null)	return;
+		try 
+		{
+			log = new BTLog(SystemDefs.JavabaseLogName + "." + fileName + ".log");
+			log.recover();
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+			log = null;
+		}
 	}
 
 	/**
@@ -144,6 +252,18 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public void close() {
 		try {
 			if (headerPage != null) {
+				if (mapped != null)	mapped.close();
+				if (hotPages != null)	hotPages.clear();
+				if (metrics != null)	metrics.unregister();
+				destroyTrace();
+				aggregates.clear();
+				// everything logged goes to the disk, the log starts empty next time
+				if (log != null)
+				{
+					log.checkpoint();
+					log.close();
+					log = null;
+				}
 				SystemDefs.JavabaseBM.unpinPage(headerPageID, true);
 				headerPage = null;
 			}
@@ -162,7 +282,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		{
 			if (headerPage != null) 
 			{
+				BTLog removed = log;
 				close();
+				if (removed != null)	removed.delete();
 				SystemDefs.JavabaseDB.delete_file_entry(fileName);
 			}
 		} catch (FileEntryNotFoundException | FileIOException
@@ -171,6 +293,74 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
+	/**
+	 * the header of a file created before the statistics were kept holds 
+	 * leftover bytes in their place: count them from the pages once.
+	 */
+	private void upgradeHeader()
+	{
+		try 
+		{
+			int keyType = headerPage.get_keyType();
+			// the index levels, one at a time
+			int height = 1;
+			int indexPages = 0;
+			List<PageId> level = new ArrayList<PageId>();
+			level.add(headerPage.get_rootId());
+			while (true)
+			{
+				List<PageId> children = new ArrayList<PageId>();
+				for (PageId pageId : level)
+				{
+					HFPage page = new HFPage();
+					pinPageForScan(pageId, page);
+					if (page.getType() == NodeType.INDEX)
+					{
+						indexPages++;
+						BTIndexPage indexPage = new BTIndexPage(page, keyType);
+						children.add(indexPage.getLeftLink());
+						RID iteratorRecord = new RID();
+						for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord); entry != null; entry = indexPage.getNext(iteratorRecord))
+						{	children.add(((IndexData) entry.data).getData());	}
+					}
+					unpinPage(pageId, false);
+				}
+				if (children.isEmpty())	break;
+				height++;
+				level = children;
+			}
+			// the leaf chain from the leftmost leaf
+			int leafPages = 0;
+			int entries = 0;
+			int distinctKeys = 0;
+			KeyClass previous = null;
+			PageId pageId = level.get(0);
+			while (pageId.pid != INVALID_PAGE)
+			{
+				HFPage page = new HFPage();
+				pinPageForScan(pageId, page);
+				BTLeafPage leafPage = new BTLeafPage(page, keyType);
+				leafPages++;
+				RID iteratorRecord = new RID();
+				for (KeyDataEntry entry = leafPage.getFirst(iteratorRecord); entry != null; entry = leafPage.getNext(iteratorRecord))
+				{
+					entries++;
+					if (previous == null || BT.keyCompare(previous, entry.key) != 0)	distinctKeys++;
+					previous = entry.key;
+				}
+				PageId nextId = leafPage.getNextPage();
+				unpinPage(pageId, false);
+				pageId = nextId;
+			}
+			headerPage.upgrade(height, entries, leafPages, indexPages, distinctKeys);
+		} 
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e) 
+		{	e.printStackTrace();	}
+	}
+
 	/**
 	 * insert record with the given key and rid
 	 * 
@@ -181,6 +371,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	@Override
 	public void insert(KeyClass key, RID rid) {
+		long start = System.nanoTime();
+		boolean traced = traceBegin("insert", key);
+		boolean completed = false; // a rejected key is not an insert
 		try {
 			if (headerPage != null) 
 			{
@@ -200,15 +393,17 @@ public class BTreeFile extends IndexFile implements GlobalConst {
     			} else
     				throw new KeyNotMatchException(null, "");
     
+    			beginOperation();
     			// search to find the required leaf page
     			// load the root page
     			HFPage page = new HFPage();
-    			SystemDefs.JavabaseBM.pinPage(headerPage.get_rootId(), page, false);
+    			pinPage(headerPage.get_rootId(), page, false);
     			BTSortedPage rootPage = new BTSortedPage(page,headerPage.get_keyType());
 
     			//insert
     			KeyDataEntry entry = new KeyDataEntry(key,rid);
     			splittedInserstion(rootPage,entry);
+    			completed = true;
     			//rootPage.dumpPage();
 			}
 		} 
@@ -216,187 +411,244 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				| ReplacerException | HashOperationException
 				| PageUnpinnedException | InvalidFrameNumberException
 				| PageNotReadException | BufferPoolExceededException
-				| PagePinnedException | BufMgrException e) {
+				| PagePinnedException | BufMgrException | DeleteRecException
+				| HashEntryNotFoundException | ConstructPageException | InsertRecException e) {
 			e.printStackTrace();
 		}
+		finally {
+			// a split that failed halfway is undone, not committed
+			if (completed)	endOperation();
+			else abortOperation();
+			if (completed)	getMetrics().inserted(System.nanoTime() - start, operationPins);
+			traceEnd(traced);
+		}
 	}
-	private KeyDataEntry splittedInserstion(BTSortedPage currentPage , KeyDataEntry currentEntry)
+	private KeyDataEntry splittedInserstion(BTSortedPage currentPage , KeyDataEntry currentEntry) throws IOException,
+			ReplacerException, PageUnpinnedException, InvalidFrameNumberException, HashOperationException,
+			PageNotReadException, BufferPoolExceededException, PagePinnedException, BufMgrException,
+			DeleteRecException, HashEntryNotFoundException, ConstructPageException, InsertRecException
 	{
-		try 
+		KeyDataEntry returnedEntry;
+		// if the page is an index page
+		if(currentPage.getType() == NodeType.INDEX)
 		{
-			KeyDataEntry returnedEntry;
-			// if the page is an index page
-			if(currentPage.getType() == NodeType.INDEX)
-			{
-				// set the page as index page object
-				BTIndexPage parentPage = new BTIndexPage(currentPage,headerPage.get_keyType());
-				// find child page id ************************************
-				PageId childPageId = parentPage.getPageNoByKey(currentEntry.key);
-				//load child page and pin it
-				HFPage childLoader = new HFPage();
-				SystemDefs.JavabaseBM.pinPage(childPageId, childLoader, false);
-				BTSortedPage childPage = new BTSortedPage(childLoader, headerPage.get_keyType());
-				
-				// recursive call
-				returnedEntry = splittedInserstion(childPage, currentEntry);
-				
-				// no insertion is required if (returnedEntry == null) 	
-				
-				// try to insert in the parent page, if successful then return null else enter the else if 
-			    if(returnedEntry!=null && parentPage.insertKey(returnedEntry.key,((IndexData) (returnedEntry.data)).getData())==null)
+			// set the page as index page object
+			BTIndexPage parentPage = new BTIndexPage(currentPage,headerPage.get_keyType());
+			aggregates.descended(parentPage.getCurPage().pid);
+			// find child page id ************************************
+			PageId childPageId = parentPage.getPageNoByKey(currentEntry.key);
+			//load child page and pin it
+			HFPage childLoader = new HFPage();
+			pinPage(childPageId, childLoader, false);
+			BTSortedPage childPage = new BTSortedPage(childLoader, headerPage.get_keyType());
+			
+			// recursive call
+			returnedEntry = splittedInserstion(childPage, currentEntry);
+			
+			// no insertion is required if (returnedEntry == null) 	
+			
+			// try to insert in the parent page, if successful then return null else enter the else if 
+		    if(returnedEntry!=null && parentPage.insertKey(returnedEntry.key,((IndexData) (returnedEntry.data)).getData())==null)
+			{
+				// split page
+				int splitAt = splitPoint(parentPage, returnedEntry.key);
+				BTIndexPage splittedPage = new BTIndexPage(splitIndex(parentPage, splitAt),headerPage.get_keyType());
+				aggregates.split(parentPage.getCurPage().pid);
+				// the pages of one insert split from the leaf up, one level at a time
+				getMetrics().split(++splitLevel);
+				headerPage.setIndexPageCount(headerPage.getIndexPageCount() + 1);
+
+				//find where the push up entry should be inserted
+				// left , right , up
+				boolean[] location = findLocation(parentPage,splittedPage,returnedEntry);
+				// insert returnedEntry and handle pointers
+				if(location[2])
 				{
-					// split page
-					BTIndexPage splittedPage = new BTIndexPage(splitIndex(parentPage),headerPage.get_keyType());
-
-					//find where the push up entry should be inserted
-					// left , right , up
-					boolean[] location = findLocation(parentPage,splittedPage,returnedEntry);
-					// insert returnedEntry and handle pointers
-					if(location[2])
-					{
-					    splittedPage.setPrevPage(((IndexData) returnedEntry.data).getData());
-					    returnedEntry = new KeyDataEntry(returnedEntry.key,splittedPage.getCurPage());
-					}
-					else if (location[1])
-					{
-					    RID tempRecord = new RID();
-					    KeyDataEntry pushUpEntry = splittedPage.getFirst(tempRecord);
-					    splittedPage.deleteSortedRecord(tempRecord);
-					    splittedPage.insertKey(returnedEntry.key,((IndexData) returnedEntry.data).getData());
+				    splittedPage.setPrevPage(((IndexData) returnedEntry.data).getData());
+				    returnedEntry = new KeyDataEntry(returnedEntry.key,splittedPage.getCurPage());
+				}
+				else if (location[1])
+				{
+				    RID tempRecord = new RID();
+				    KeyDataEntry pushUpEntry = splittedPage.getFirst(tempRecord);
+				    splittedPage.deleteSortedRecord(tempRecord);
+				    if (splittedPage.insertKey(returnedEntry.key,((IndexData) returnedEntry.data).getData()) == null)
+				    	throw new InsertRecException(null, "no room for the separator in the split index page");
                         splittedPage.setPrevPage(((IndexData) pushUpEntry.data).getData());//4
                         returnedEntry = new KeyDataEntry(pushUpEntry.key,splittedPage.getCurPage());//3
-					}
-					else if (location [0])
-					{
-					    RID tempRecord = new RID ();
+				}
+				else if (location [0])
+				{
+				    RID tempRecord = new RID ();
                 	    KeyDataEntry pushUpEntry = parentPage.getFirst(tempRecord);
                 	    // get right most data entry in the parent page (left)
                         for (int i = 0; i < parentPage.numberOfRecords()-1 ; i++) 
                         {  pushUpEntry = parentPage.getNext(tempRecord);  }
                         
                         parentPage.deleteSortedRecord(tempRecord);
-					    parentPage.insertKey(returnedEntry.key,((IndexData) returnedEntry.data).getData());
+				    if (parentPage.insertKey(returnedEntry.key,((IndexData) returnedEntry.data).getData()) == null)
+				    	throw new InsertRecException(null, "no room for the separator in the split index page");
                         splittedPage.setPrevPage(((IndexData) pushUpEntry.data).getData());//5
                         returnedEntry = new KeyDataEntry(pushUpEntry.key,splittedPage.getCurPage());//4
-					}
+				}
 
-					//if the page is a root page
-					if(parentPage.getCurPage().pid == headerPage.get_rootId().pid)
-					{
-						// set the new root and pin it
-						BTIndexPage rootPage = new BTIndexPage(headerPage.get_keyType());
-						rootPage.init(rootPage.getCurPage(),rootPage);
-						rootPage.setType(NodeType.INDEX);
-						// insert push up
-						rootPage.insertKey(returnedEntry.key ,((IndexData) returnedEntry.data).getData());
-						// handle pointers
-						rootPage.setPrevPage(parentPage.getCurPage());
-						// set root in header page
-						headerPage.setRootPageId(rootPage.getCurPage());
-						// set return = null
-						returnedEntry = null;
-						// unpin root page 
-						SystemDefs.JavabaseBM.unpinPage(rootPage.getCurPage(),true);
-					}
-					SystemDefs.JavabaseBM.unpinPage(splittedPage.getCurPage(),true);
+				//if the page is a root page
+				if(parentPage.getCurPage().pid == headerPage.get_rootId().pid)
+				{
+					// set the new root and pin it
+					BTIndexPage rootPage = newIndexPage();
+					// insert push up
+					rootPage.insertKey(returnedEntry.key ,((IndexData) returnedEntry.data).getData());
+					// handle pointers
+					rootPage.setPrevPage(parentPage.getCurPage());
+					// set root in header page
+					headerPage.setRootPageId(rootPage.getCurPage());
+					headerPage.setIndexPageCount(headerPage.getIndexPageCount() + 1);
+					headerPage.setHeight(headerPage.getHeight() + 1);
+					getMetrics().rootSplit();
+					// set return = null
+					returnedEntry = null;
+					// unpin root page 
+					unpinPage(rootPage.getCurPage(),true);
 				}
-				else returnedEntry = null;
-				SystemDefs.JavabaseBM.unpinPage(parentPage.getCurPage(),true);
-				return returnedEntry;
+				unpinPage(splittedPage.getCurPage(),true);
 			}
-			// if the page is a leaf page
-			else if(currentPage.getType() == NodeType.LEAF)
-			{
-				KeyDataEntry copyUpEntry = null ;
-				// load the page as leaf page object
-				BTLeafPage leafPage = new BTLeafPage(currentPage,headerPage.get_keyType());
-				//System.out.println(">>> "+currentEntry.key +" "+currentEntry.data);
-				// try to insert , enter the if when a split is required
-				if(leafPage.insertRecord(currentEntry.key,((LeafData) currentEntry.data).getData())==null)
+			else returnedEntry = null;
+			unpinPage(parentPage.getCurPage(),true);
+			return returnedEntry;
+		}
+		// if the page is a leaf page
+		else if(currentPage.getType() == NodeType.LEAF)
+		{
+			KeyDataEntry copyUpEntry = null ;
+			// load the page as leaf page object
+			BTLeafPage leafPage = new BTLeafPage(currentPage,headerPage.get_keyType());
+			aggregates.descended(leafPage.getCurPage().pid);
+			boolean newKey = !containsKey(leafPage, currentEntry.key);
+			//System.out.println(">>> "+currentEntry.key +" "+currentEntry.data);
+			// try to insert , enter the if when a split is required
+			if(leafPage.insertRecord(currentEntry.key,((LeafData) currentEntry.data).getData())==null)
+			{
+			    // split page
+			    int splitAt = splitPoint(leafPage, currentEntry.key);
+			    BTLeafPage splittedPage =  new BTLeafPage(splitLeaf(leafPage, splitAt),headerPage.get_keyType());
+			    aggregates.split(leafPage.getCurPage().pid);
+			    splitLevel = 0;
+			    getMetrics().split(splitLevel);
+			    headerPage.setLeafPageCount(headerPage.getLeafPageCount() + 1);
+			    
+			    // handle page pointers
+			    splittedPage.setPrevPage(leafPage.getCurPage());
+			    PageId nextId = leafPage.getNextPage();
+			    if(nextId.pid!=-1)
+			    {
+			        HFPage loadNextPage = new HFPage();
+			        pinPage(nextId, loadNextPage, false);
+			        BTLeafPage nextPage = new BTLeafPage(loadNextPage, loadNextPage.getType());
+			        nextPage.setPrevPage(splittedPage.getCurPage());
+			        unpinPage(nextPage.getCurPage(),true);
+			    }
+			    splittedPage.setNextPage(nextId);
+			    leafPage.setNextPage(splittedPage.getCurPage());
+			    // insert left or right
+			    insertAfterSplit(leafPage, splittedPage, currentEntry);
+			    RID tempRecord = new RID();
+			    KeyClass separator = splittedPage.getFirst(tempRecord).key;
+			    // copy up only the prefix that tells the two pages apart
+			    if (headerPage.getSplitPolicy() == SplitPolicy.SHORTEST_SEPARATOR && separator instanceof StringKey)
+			    {
+			        String leftKey = ((StringKey) getLastEntry(leafPage).key).getKey();
+			        separator = new StringKey(SplitPolicy.shortestSeparator(leftKey, ((StringKey) separator).getKey()));
+			    }
+			    copyUpEntry = new KeyDataEntry(separator, splittedPage.getCurPage());
+				
+				// if  its the root                                
+				if(leafPage.getCurPage().pid == headerPage.get_rootId().pid)
 				{
-				    // split page
-				    BTLeafPage splittedPage =  new BTLeafPage(splitLeaf(leafPage),headerPage.get_keyType());
-				    
-				    // handle page pointers
-				    splittedPage.setPrevPage(leafPage.getCurPage());
-				    PageId nextId = leafPage.getNextPage();
-				    if(nextId.pid!=-1)
-				    {
-				        HFPage loadNextPage = new HFPage();
-				        SystemDefs.JavabaseBM.pinPage(nextId, loadNextPage, false);
-				        BTLeafPage nextPage = new BTLeafPage(loadNextPage, loadNextPage.getType());
-				        nextPage.setPrevPage(splittedPage.getCurPage());
-				        SystemDefs.JavabaseBM.unpinPage(nextPage.getCurPage(),true);
-				    }
-				    splittedPage.setNextPage(nextId);
-				    leafPage.setNextPage(splittedPage.getCurPage());
-				    // detect insertion location ****************************
-				    boolean[] location = findLocation(leafPage,splittedPage,currentEntry);
-				    
-				    // insert right
-				    if(location[1])
-				    {
-					   splittedPage.insertRecord(currentEntry.key,((LeafData) currentEntry.data).getData());
-				    }
-				    // insert left
-				    else if (location[0])
-				    {
-				       leafPage.insertRecord(currentEntry.key,((LeafData) currentEntry.data).getData());
-				    }
-				    RID tempRecord = new RID();
-				    copyUpEntry = new KeyDataEntry(splittedPage.getFirst(tempRecord).key
-					                                            ,splittedPage.getCurPage());
-					
-					// if  its the root                                
-					if(leafPage.getCurPage().pid == headerPage.get_rootId().pid)
-					{
-						// set the new root and pin it
-						BTIndexPage rootPage =  new BTIndexPage(headerPage.get_keyType());
-						rootPage.init(rootPage.getCurPage(),rootPage);
-						rootPage.setType(NodeType.INDEX);
-						// insert copy up
-						rootPage.insertKey(copyUpEntry.key ,((IndexData) copyUpEntry.data).getData());
-						// handle pointers
-						rootPage.setPrevPage(leafPage.getCurPage());
-						// set root in header page
-						headerPage.setRootPageId(rootPage.getCurPage());
-						// set return = null
-						copyUpEntry = null;
-						// unpin root page 
-						SystemDefs.JavabaseBM.unpinPage(rootPage.getCurPage(),true);
-					}
-                   SystemDefs.JavabaseBM.unpinPage(splittedPage.getCurPage(),true);
+					// set the new root and pin it
+					BTIndexPage rootPage = newIndexPage();
+					// insert copy up
+					rootPage.insertKey(copyUpEntry.key ,((IndexData) copyUpEntry.data).getData());
+					// handle pointers
+					rootPage.setPrevPage(leafPage.getCurPage());
+					// set root in header page
+					headerPage.setRootPageId(rootPage.getCurPage());
+					headerPage.setIndexPageCount(headerPage.getIndexPageCount() + 1);
+					headerPage.setHeight(headerPage.getHeight() + 1);
+					getMetrics().rootSplit();
+					// set return = null
+					copyUpEntry = null;
+					// unpin root page 
+					unpinPage(rootPage.getCurPage(),true);
 				}
-				SystemDefs.JavabaseBM.unpinPage(leafPage.getCurPage(),true);
-				return copyUpEntry;
+                   unpinPage(splittedPage.getCurPage(),true);
 			}
-
+			headerPage.setEntryCount(headerPage.getEntryCount() + 1);
+			aggregates.counted(1);
+			if (newKey)	headerPage.setDistinctKeyCount(headerPage.getDistinctKeyCount() + 1);
+			unpinPage(leafPage.getCurPage(),true);
+			return copyUpEntry;
 		}
-		catch (IOException | ReplacerException | PageUnpinnedException | InvalidFrameNumberException | HashOperationException | PageNotReadException | BufferPoolExceededException | PagePinnedException | BufMgrException | DeleteRecException | HashEntryNotFoundException | ConstructPageException e) 	{	e.printStackTrace();	}
 		return currentEntry;
 	}
 	
+	/**
+	 * insert the entry into the half of a split leaf it belongs to. With a fill
+	 * factor near 1 or 99, or the shifted split point of SHORTEST_SEPARATOR, that
+	 * half may have room for about one record only: records are then moved 
+	 * across the split point until the entry fits.
+	 * @throws InsertRecException - if the two pages cannot hold the entry, the
+	 * 		   insert is then aborted and the split undone
+	 */
+	private void insertAfterSplit(BTLeafPage leafPage, BTLeafPage splittedPage, KeyDataEntry entry) 
+			throws InsertRecException, IOException, DeleteRecException
+	{
+		BTLeafPage full = null;
+		while (true)
+		{
+			boolean[] location = findLocation(leafPage, splittedPage, entry);
+			BTLeafPage target = location[1] ? splittedPage : leafPage;
+			if (target.insertRecord(entry.key, ((LeafData) entry.data).getData()) != null)	return;
+			// records only move away from the page found full first
+			if ((full != null && full != target) || target.numberOfRecords() < 2)
+				throw new InsertRecException(null, "no room for the entry in the split pages");
+			full = target;
+			if (target == leafPage)
+			{
+				KeyDataEntry last = getLastEntry(leafPage);
+				if (splittedPage.insertRecord(last.key, ((LeafData) last.data).getData()) == null)
+					throw new InsertRecException(null, "no room for the entry in the split pages");
+				leafPage.delEntry(last);
+			}
+			else
+			{
+				RID firstRecord = new RID();
+				KeyDataEntry first = splittedPage.getFirst(firstRecord);
+				if (leafPage.insertRecord(first.key, ((LeafData) first.data).getData()) == null)
+					throw new InsertRecException(null, "no room for the entry in the split pages");
+				splittedPage.deleteSortedRecord(firstRecord);
+			}
+		}
+	}
+	
 	
-	private BTIndexPage splitIndex(BTIndexPage parentPage)
+	private BTIndexPage splitIndex(BTIndexPage parentPage, int splitAt)
 	{
         BTIndexPage splittedPage = null;
 		try 
 		{
             	// split page
-				splittedPage= new BTIndexPage(headerPage.get_keyType()); // make a new page and pin it
-				splittedPage.init(splittedPage.getCurPage(),splittedPage);
-				splittedPage.setType(NodeType.INDEX);
+				splittedPage= newIndexPage(); // make a new page and pin it
 				
-				// take records from the parent page until it's halve full
+				// take records from the parent page until it keeps splitAt records
 				RID iteratorRecord = parentPage.firstRecord();
                 KeyDataEntry currentEntry = parentPage.getFirst(iteratorRecord);
 				//get the left most record of the splitted page 
-				//(if 4 then start from the 3rd , if 3 then from 2st)
-				for (int i = 0; i < parentPage.numberOfRecords()/2 ; i++) 
+				for (int i = 0; i < splitAt ; i++) 
 				{	 currentEntry = parentPage.getNext(iteratorRecord);	}
 				
 				// insert those records in the splited page
-				for (int i = parentPage.numberOfRecords()/2; i < parentPage.numberOfRecords(); i++) 
+				for (int i = splitAt; i < parentPage.numberOfRecords(); i++) 
 				{
 					splittedPage.insertKey(currentEntry.key , ((IndexData) currentEntry.data).getData());
 				    currentEntry = parentPage.getNext(iteratorRecord);
@@ -404,7 +656,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				
 				//delete entries from 1st page
 			    int boundry = parentPage.numberOfRecords();
-				for (int i =boundry/2; i < boundry; i++) 
+				for (int i =splitAt; i < boundry; i++) 
 				{
 				    iteratorRecord = getLastRecord(parentPage);
 					parentPage.deleteSortedRecord(iteratorRecord);
@@ -415,27 +667,24 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return splittedPage;
 	}
 	
-	private BTLeafPage splitLeaf(BTLeafPage parentPage)
+	private BTLeafPage splitLeaf(BTLeafPage parentPage, int splitAt)
 	{
         BTLeafPage splittedPage = null;
 		try 
 		{
             	// split page
-				splittedPage= new BTLeafPage(headerPage.get_keyType()); // make a new page and pin it
-				splittedPage.init(splittedPage.getCurPage(),splittedPage);
-				splittedPage.setType(NodeType.LEAF);
+				splittedPage= newLeafPage(); // make a new page and pin it
 				
-				// take records from the parent page until it's halve full
+				// take records from the parent page until it keeps splitAt records
 				RID iteratorRecord = parentPage.firstRecord();
                 KeyDataEntry currentEntry = parentPage.getFirst(iteratorRecord);
                 
 				//get the left most record of the splitted page 
-				//(if 4 then start from the 3rd , if 3 then from 2st)
-				for (int i = 0; i < parentPage.numberOfRecords()/2  ; i++) 
+				for (int i = 0; i < splitAt  ; i++) 
 				{	 currentEntry = parentPage.getNext(iteratorRecord);	}
 				
 				// insert those records in the splited page
-				for (int i = parentPage.numberOfRecords()/2; i < parentPage.numberOfRecords(); i++) 
+				for (int i = splitAt; i < parentPage.numberOfRecords(); i++) 
 				{
 					splittedPage.insertRecord(currentEntry.key , ((LeafData) currentEntry.data).getData());
 				    currentEntry = parentPage.getNext(iteratorRecord);
@@ -443,7 +692,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				
 				//delete entries from 1st page
 				int boundry = parentPage.numberOfRecords();
-				for (int i =boundry/2; i < boundry; i++) 
+				for (int i =splitAt; i < boundry; i++) 
 				{
 				    currentEntry = getLastEntry(parentPage);
 					parentPage.delEntry(currentEntry);
@@ -455,165 +704,745 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return splittedPage;
 	}
 
-	private KeyDataEntry getLastEntry(BTLeafPage page)
+	/**
+	 * pin a page of the tree. Inside an operation the page content is remembered
+	 * the first time it is pinned, as the before image for the log.
+	 */
+	void pinPage(PageId pageId, Page page, boolean emptyPage) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException, 
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException
 	{
-	    RID iteratorRecord = new RID();
-	    KeyDataEntry currentEntry = page.getFirst(iteratorRecord);
-	    KeyDataEntry nextEntry = page.getNext(iteratorRecord);
-	    while(nextEntry!= null)
-	    {
-	        currentEntry = page.getCurrent(iteratorRecord);
-	        nextEntry = page.getNext(iteratorRecord);
-	    }
-	    return currentEntry;
+		pinPage(pageId, page, emptyPage, false);
 	}
 	
-	private RID getLastRecord(BTIndexPage page)
+	/**
+	 * pin a page read by a scan: the hot index pages of the lookups are not 
+	 * replaced by the pages of the scan.
+	 */
+	void pinPageForScan(PageId pageId, Page page) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException, 
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException
 	{
-	    RID currentRecord = null;
-		try {
-			currentRecord = page.firstRecord();
-
-		    RID nextRecord = page.nextRecord(currentRecord);
-		    while(nextRecord!= null)
-		    {
-		        currentRecord = page.nextRecord(currentRecord);
-		        nextRecord = page.nextRecord(nextRecord);
-		    }
-		    return currentRecord;
-		    
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-	    return currentRecord;
+		pinPage(pageId, page, false, true);
 	}
-
 	
+	private void pinPage(PageId pageId, Page page, boolean emptyPage, boolean scan) throws ReplacerException, 
+			HashOperationException, PageUnpinnedException, InvalidFrameNumberException, PageNotReadException, 
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException
+	{
+		long start = System.nanoTime();
+		SystemDefs.JavabaseBM.pinPage(pageId, page, emptyPage);
+		long nanos = System.nanoTime() - start;
+		pinned(pageId, page);
+		operationPins++;
+		boolean miss = getMetrics().pinned(pageId.pid);
+		short type = emptyPage ? 0 : new HFPage(page).getType();
+		if (trace != null)	trace.pinned(pageId.pid, type, miss, nanos);
+		if (!emptyPage)	getHotPages().accessed(pageId, type, scan);
+	}
 	
-	private boolean[] findLocation(BTSortedPage parentPage,BTSortedPage splittedPage , KeyDataEntry entry)
+	private BTHotPages getHotPages()
 	{
-	    boolean[] location = new boolean[3];
-		try
+		// none until setHotIndexPages
+		if (hotPages == null)	hotPages = new BTHotPages(0);
+		return hotPages;
+	}
+	
+	/**
+	 * @return - the counters and latencies of the operations on this file
+	 */
+	public BTreeMetrics getMetrics()
+	{
+		if (metrics == null)	metrics = new BTreeMetrics(SystemDefs.JavabaseBM.getNumBuffers());
+		return metrics;
+	}
+	
+	/**
+	 * publish the metrics of the file through JMX, until the file is closed
+	 */
+	public void registerMetrics()
+	{
+		try 
 		{
-			RID leftRecord = parentPage.firstRecord();
-			RID rightRecord = splittedPage.firstRecord();
-	        
-		    if(parentPage.getType() == NodeType.INDEX)
-		    {
-		    	BTIndexPage indexPage = new BTIndexPage(parentPage,headerPage.get_keyType());
-				indexPage.setType(NodeType.INDEX);
-
-		    	BTIndexPage splittedIndexPage = new BTIndexPage(splittedPage,headerPage.get_keyType());
-				splittedIndexPage.setType(NodeType.INDEX);
-
-		    	KeyDataEntry leftData = indexPage.getFirst(leftRecord);
-			    // get right most data entry in the parent page (left)
-		        for (int i = 0; i < parentPage.numberOfRecords()-1 ; i++) 
-		        {   leftData = indexPage.getNext(leftRecord);  }
-			    KeyDataEntry rightData = splittedIndexPage.getFirst(rightRecord);
-		        
-		        // insert to the left page
-	            if (BT.keyCompare(entry.key, leftData.key) < 0  && BT.keyCompare(entry.key, rightData.key) < 0 )
-	            {
-	                location[0] = true;
-	                return location;
-	            }
-		        // insert to the right page
-	            else if(BT.keyCompare(entry.key, leftData.key) > 0 && BT.keyCompare(entry.key, rightData.key) > 0  )
-	            {
-	                location[1] = true;
-	                return location;
-	            }
-	            // insert to the upper page
-	            else 
-	            {
-	                location[2] = true;
-	                return location;
-	            }
-		    }
-		    else if(parentPage.getType() == NodeType.LEAF)
-		    {
-		    	BTLeafPage leafPage = new BTLeafPage(parentPage,headerPage.get_keyType());
-				leafPage.setType(NodeType.LEAF);
-
-		    	BTLeafPage splittedleafPage = new BTLeafPage(splittedPage,headerPage.get_keyType());
-				splittedleafPage.setType(NodeType.LEAF);
-
-		    	KeyDataEntry leftData = leafPage.getFirst(leftRecord);
-			    // get right most data entry in the parent page (left)
-		        for (int i = 0; i <  parentPage.numberOfRecords()-1 ; i++) 
-		        {   leftData = leafPage.getNext(leftRecord);  }
-			    KeyDataEntry rightData = splittedleafPage.getFirst(rightRecord);
-		    	
-				// insert to the left page if less than right
-				if (BT.keyCompare(entry.key, rightData.key) < 0) 
-				{
-				    location[0] = true;
-				    return location ;
-				}
-		        // insert to the right page if greater than left or equal to right
-				else if (BT.keyCompare(entry.key, leftData.key) > 0 || BT.keyCompare(entry.key, rightData.key) == 0) 
-				{
-				   	location[1]= true;
-				   	return location;
-				}
-		    }
-		} catch (IOException | KeyNotMatchException  e) {
-			e.printStackTrace();
-		}
-	        return location;
+			getMetrics().register(fileName);
+		} 
+		catch (JMException e) 
+		{	e.printStackTrace();	}
 	}
-
-
-    // unpin the root
-	private BTLeafPage search(KeyClass key, RID rid,BTIndexPage rootPage) 
+	
+	/**
+	 * set how many hot index pages the tree keeps pinned for its lookups,
+	 * 0 (the default) to leave all the pages to the replacer of the buffer 
+	 * manager. At most a quarter of the buffer pool is kept. These pins are 
+	 * held outside the operations, so the pin tracker and the verifier do not 
+	 * see them: keep the pages of all the open files well under the pool.
+	 * @param pages - number of pages. Input parameter.
+	 */
+	public void setHotIndexPages(int pages)
 	{
-		BTSortedPage currentPage = null;
 		try 
 		{
-		    PageId currentPageId = rootPage.getPageNoByKey(key);
-		    //unpin root
-		    
-				SystemDefs.JavabaseBM.unpinPage(rootPage.getCurPage(),false);
-			
-		    // load retrieved page by id
-	        currentPage = new BTSortedPage(currentPageId,headerPage.get_keyType()); // pin it
-	        
-	        while(currentPage.getType() == NodeType.INDEX)
-	        {
-	            BTIndexPage currentIndexPage = new BTIndexPage(currentPage,headerPage.get_keyType());
-	            currentPageId = currentIndexPage.getPageNoByKey(key);
-	            SystemDefs.JavabaseBM.unpinPage(currentPage.getCurPage(),false);
-	            currentPage = new BTSortedPage(currentPageId,headerPage.get_keyType()); // pin it
-	        }
+			if (hotPages != null)	hotPages.clear();
 		} 
-		catch (ReplacerException | PageUnpinnedException| HashEntryNotFoundException | InvalidFrameNumberException| IOException | ConstructPageException e) 
+		catch (ReplacerException | PageUnpinnedException | HashEntryNotFoundException
+				| InvalidFrameNumberException e) 
 		{	e.printStackTrace();	}
-        return (new BTLeafPage(currentPage , headerPage.get_keyType())  );
+		hotPages = new BTHotPages(Math.max(0, Math.min(pages, SystemDefs.JavabaseBM.getNumBuffers() / 4)));
 	}
-
+	
+	private void pinned(PageId pageId, Page page)
+	{
+		pins.pinned(pageId.pid);
+		aggregates.pinned(pageId.pid);
+		versions.pinned(pageId, page);
+		if (log != null)	log.pinned(pageId, page);
+	}
+	
 	/**
-	 * delete leaf entry given its pair. `rid' is IN the data entry; it is not
-	 * the id of the data entry)
-	 * 
-	 * @param key	- the key in pair . Input Parameter.
-	 * @param rid	- the rid in pair . Input Parameter.
-	 * @return true if deleted. false if no such record.
+	 * unpin a page of the tree. A page changed inside an operation is logged and 
+	 * stays pinned until the operation commits.
 	 */
-	@Override
-	public boolean Delete(KeyClass key, RID rid) 
+	void unpinPage(PageId pageId, boolean dirty) throws ReplacerException, PageUnpinnedException,
+			HashEntryNotFoundException, InvalidFrameNumberException
 	{
-		
-		// search the page and delete the record
+		if (dirty)	versions.unpinning(pageId);
+		if (dirty && mapped != null)	mapped.changed(pageId);
+		if (dirty)	aggregates.changed(pageId.pid);
+		pins.unpinned(pageId.pid);
+		long start = System.nanoTime();
+		// a page held by the log is unpinned when the log is forced
+		if (!(dirty && log != null && log.unpinning(pageId)))	SystemDefs.JavabaseBM.unpinPage(pageId, dirty);
+		if (trace != null)	trace.unpinned(pageId.pid, dirty, System.nanoTime() - start);
+	}
+	
+	/**
+	 * @return - the pins taken by the tree and not given back, less the leaves
+	 * 			 of the open scans, by page id. Between two operations they 
+	 * 			 should all be 0.
+	 */
+	Map<Integer, Integer> leakedPins()
+	{
+		return pins.unscoped();
+	}
+	
+	BTPinTracker getPins()
+	{
+		return pins;
+	}
+	
+	/**
+	 * record where every pin of the tree is taken, so the pins still held after
+	 * an operation or by a scan never closed are reported with their origin.
+	 * Costs a stack trace per pin, meant for debugging.
+	 * @param tracing - true to record, false to stop. Input parameter.
+	 */
+	public void trackPins(boolean tracing)
+	{
+		pins.setTracing(tracing);
+	}
+	
+	/**
+	 * give back the leaves of the scans garbage collected without being closed
+	 */
+	private void releaseDroppedScans()
+	{
+		for (PageId leaf : pins.dropped())
+		{
+			try 
+			{
+				unpinPage(leaf, false);
+			} 
+			catch (ReplacerException | PageUnpinnedException | HashEntryNotFoundException
+					| InvalidFrameNumberException e) 
+			{	e.printStackTrace();	}
+		}
+	}
+	
+	/**
+	 * @return - number of operations that changed the tree so far
+	 */
+	int getModifications()
+	{
+		return modifications;
+	}
+	
+	/**
+	 * write the operations of this file that take at least the trace threshold 
+	 * to a trace file, with the pins and unpins of each of them.
+	 * @param filename - the trace file, appended to. Input parameter.
+	 */
+	public void traceFilename(String filename)
+	{
+		destroyTrace();
+		try 
+		{
+			trace = new BTTrace(filename);
+		} 
+		catch (IOException e) 
+		{	e.printStackTrace();	}
+	}
+	
+	/**
+	 * @param micros - trace only the operations that take at least this long, 0 for all. Input parameter.
+	 */
+	public void setTraceThreshold(long micros)
+	{
+		if (trace != null)	trace.setThreshold(micros);
+	}
+	
+	/**
+	 * stop tracing and close the trace file
+	 */
+	public void destroyTrace()
+	{
+		if (trace != null)	trace.close();
+		trace = null;
+	}
+	
+	/**
+	 * start tracing an operation if tracing is on
+	 * @return - true if the caller must call traceEnd
+	 */
+	boolean traceBegin(String operation, KeyClass key)
+	{
+		return trace != null && trace.begin(operation, key);
+	}
+	
+	void traceEnd(boolean traced)
+	{
+		if (traced && trace != null)	trace.end();
+	}
+	
+	/**
+	 * pin a page and look at it as a sorted page
+	 */
+	private BTSortedPage pinSortedPage(PageId pageId) throws ConstructPageException
+	{
+		try 
+		{
+			HFPage page = new HFPage();
+			pinPage(pageId, page, false);
+			return new BTSortedPage(page, headerPage.get_keyType());
+		} 
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException e) 
+		{	throw new ConstructPageException(e, "pin page failed");	}
+	}
+	
+	/**
+	 * start an operation that changes the tree: everything it changes is logged
+	 * and committed together by endOperation, or undone by abortOperation.
+	 */
+	void beginOperation()
+	{
+		releaseDroppedScans();
+		operationPins = 0;
+		inOperation = true;
+		aggregates.begin();
+		versions.begin();
+		if (log != null && !log.inOperation())	log.begin(headerPageID, headerPage);
+	}
+	
+	/**
+	 * commit the operation once it completed, nothing to do if none began
+	 */
+	void endOperation()
+	{
+		if (!inOperation)	return;
+		inOperation = false;
+		modifications++;
+		aggregates.end();
+		versions.end();
+		if (log != null)	log.commit();
+		pins.check("an operation");
+	}
+	
+	/**
+	 * undo an operation that failed halfway, nothing to do if none began: the
+	 * log puts back the pages it changed, the pins it left are given back and
+	 * the pages it allocated in the database are freed. Without a log the
+	 * changes already made stay in the tree.
+	 */
+	void abortOperation()
+	{
+		if (!inOperation)	return;
+		inOperation = false;
+		Set<Integer> pinned = new HashSet<Integer>();
+		for (Map.Entry<Integer, Integer> entry : pins.unscoped().entrySet())
+		{	if (entry.getValue() > 0)	pinned.add(entry.getKey());	}
+		List<PageId> allocated = (log != null) ? log.abort(pinned) : new ArrayList<PageId>();
+		try 
+		{
+			for (Map.Entry<Integer, Integer> entry : pins.unscoped().entrySet())
+			{
+				for (int i = 0; i < entry.getValue(); i++)
+				{	unpinPage(new PageId(entry.getKey()), true);	}
+			}
+			for (PageId pageId : allocated)
+			{	SystemDefs.JavabaseBM.freePage(pageId);	}
+		} 
+		catch (ReplacerException | PageUnpinnedException | HashEntryNotFoundException
+				| InvalidFrameNumberException | InvalidBufferException | DiskMgrException
+				| HashOperationException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException e) 
+		{	e.printStackTrace();	}
+		// the scans go down again even if every page was put back
+		modifications++;
+		aggregates.abort();
+		versions.end();
+		pins.check("a failed operation");
+	}
+	
+	/**
+	 * force the log records written so far to the disk
+	 */
+	void forceLog() throws IOException
+	{
+		if (log != null)	log.force();
+	}
+	
+	/**
+	 * pin a page for a new node: the head of the free list if there is one, 
+	 * else a newly allocated page.
+	 * @param page - pinned on return. Output parameter.
+	 * @return - the id of the page
+	 * @throws ConstructPageException
+	 */
+	private PageId allocatePage(Page page) throws ConstructPageException
+	{
+		try 
+		{
+			PageId pageId = headerPage.getFreeListHead();
+			if (pageId.pid != INVALID_PAGE)
+			{
+				pinPage(pageId, page, false);
+				headerPage.setFreeListHead(new HFPage(page).getPrevPage());
+				headerPage.setFreePageCount(headerPage.getFreePageCount() - 1);
+				return pageId;
+			}
+			PageId newPageId = SystemDefs.JavabaseBM.newPage(page, 1);
+			if (log != null)	log.allocated(newPageId);
+			pinned(newPageId, page);
+			return newPageId;
+		} 
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| DiskMgrException e) 
+		{	throw new ConstructPageException(e, "allocate page failed");	}
+	}
+	
+	/**
+	 * @return a new empty leaf page, pinned
+	 */
+	private BTLeafPage newLeafPage() throws ConstructPageException, IOException
+	{
+		Page page = new Page();
+		PageId pageId = allocatePage(page);
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		leafPage.init(pageId, page);
+		leafPage.setType(NodeType.LEAF);
+		return leafPage;
+	}
+	
+	/**
+	 * @return a new empty index page, pinned
+	 */
+	private BTIndexPage newIndexPage() throws ConstructPageException, IOException
+	{
+		Page page = new Page();
+		PageId pageId = allocatePage(page);
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		indexPage.init(pageId, page);
+		indexPage.setType(NodeType.INDEX);
+		return indexPage;
+	}
+	
+	/**
+	 * put a page that is no longer in the tree on the free list. The free list is
+	 * chained through the prev links. The page is reused by the next split, so 
+	 * the caller must not free a leaf an open scan holds.
+	 * @param page - the page, pinned by the caller. Input parameter.
+	 */
+	void freePage(HFPage page) throws IOException
+	{
+		aggregates.forget(page.getCurPage().pid);
+		page.setType(FREE_PAGE);
+		page.setPrevPage(headerPage.getFreeListHead());
+		headerPage.setFreeListHead(page.getCurPage());
+		headerPage.setFreePageCount(headerPage.getFreePageCount() + 1);
+	}
+	
+	/**
+	 * take an empty leaf out of the tree and put it on the free list. 
+	 * The leaf is kept when its parent would be left without a key, or when
+	 * an open scan holds it.
+	 * @param key - a key that leads to the leaf. Input parameter.
+	 * @param leafPage - the empty leaf, pinned by the caller. Input parameter.
+	 */
+	private void reclaimLeaf(KeyClass key, BTLeafPage leafPage)
+	{
+		try 
+		{
+			PageId leafId = leafPage.getCurPage();
+			BTIndexPage parentPage = findParent(key, leafId);
+			if (parentPage == null)	return;
+			// a leaf an open scan stands on stays in the tree: once freed it could
+			// be reused by the next split while the scan still reads it
+			boolean reclaimed = parentPage.numberOfRecords() >= 2 && !pins.held(leafId);
+			if (reclaimed)
+			{
+				removeChild(parentPage, leafId);
+				
+				// unlink the leaf from its neighbours
+				PageId prevId = leafPage.getPrevPage();
+				PageId nextId = leafPage.getNextPage();
+				if (prevId.pid != INVALID_PAGE)
+				{
+					HFPage prevPage = new HFPage();
+					pinPage(prevId, prevPage, false);
+					prevPage.setNextPage(nextId);
+					unpinPage(prevId, true);
+				}
+				if (nextId.pid != INVALID_PAGE)
+				{
+					HFPage nextPage = new HFPage();
+					pinPage(nextId, nextPage, false);
+					nextPage.setPrevPage(prevId);
+					unpinPage(nextId, true);
+				}
+				
+				freePage(leafPage);
+				headerPage.setLeafPageCount(headerPage.getLeafPageCount() - 1);
+			}
+			unpinPage(parentPage.getCurPage(), reclaimed);
+		} 
+		catch (IOException | ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | HashEntryNotFoundException 
+				| DeleteRecException e) 
+		{	e.printStackTrace();	}
+	}
+	
+	/**
+	 * descend along the key to the index page that points to the given child.
+	 * @return - the parent page, pinned; null if the child is the root or not on the path of the key.
+	 */
+	private BTIndexPage findParent(KeyClass key, PageId childId) throws ReplacerException, HashOperationException,
+			PageUnpinnedException, InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException
+	{
+		PageId pageId = headerPage.get_rootId();
+		while (pageId.pid != childId.pid)
+		{
+			HFPage page = new HFPage();
+			pinPage(pageId, page, false);
+			if (page.getType() != NodeType.INDEX)
+			{
+				unpinPage(pageId, false);
+				return null;
+			}
+			BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+			PageId nextId = indexPage.getPageNoByKey(key);
+			if (nextId.pid == childId.pid)	return indexPage;
+			unpinPage(pageId, false);
+			pageId = nextId;
+		}
+		return null;
+	}
+	
+	/**
+	 * remove the pointer to the child from the index page. If the child is the 
+	 * left link, the child of the first record becomes the left link.
+	 */
+	void removeChild(BTIndexPage indexPage, PageId childId) throws DeleteRecException
+	{
+		RID iteratorRecord = new RID();
+		KeyDataEntry entry = indexPage.getFirst(iteratorRecord);
+		if (indexPage.getLeftLink().pid == childId.pid)
+		{
+			indexPage.setLeftLink(((IndexData) entry.data).getData());
+			indexPage.deleteSortedRecord(iteratorRecord);
+			return;
+		}
+		for (; entry != null; entry = indexPage.getNext(iteratorRecord)) 
+		{
+			if (((IndexData) entry.data).getData().pid == childId.pid)
+			{
+				indexPage.deleteSortedRecord(iteratorRecord);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * choose how many records stay in a full page when it is split,
+	 * according to the split policy recorded in the header page.
+	 * @param page - the full page. Input parameter.
+	 * @param key - the key whose insertion caused the split. Input parameter.
+	 * @return - the split point
+	 */
+	private int splitPoint(BTSortedPage page, KeyClass key)
+	{
+		int splitPoint = 1;
+		try 
+		{
+			splitPoint = SplitPolicy.clamp(page.numberOfRecords()/2, page.numberOfRecords());
+			// index pages split in the middle whatever the policy: a nearly full
+			// half may have no room for the separator that goes back into it
+			if (page.getType() == NodeType.INDEX)	return splitPoint;
+			KeyClass[] keys = getKeys(page);
+			int insertPosition = 0;
+			while (insertPosition < keys.length && BT.keyCompare(keys[insertPosition], key) < 0)
+			{	insertPosition++;	}
+			
+			short policy = headerPage.getSplitPolicy();
+			splitPoint = SplitPolicy.splitPoint(policy, headerPage.getFillFactor(), keys.length, insertPosition);
+			if (policy == SplitPolicy.SHORTEST_SEPARATOR && page.getType() == NodeType.LEAF 
+					&& headerPage.get_keyType() == AttrType.attrString)
+			{
+				splitPoint = shortestSeparatorPoint(keys, splitPoint);
+			}
+		} 
+		catch (IOException | KeyNotMatchException | NodeNotMatchException | ConvertException e) 
+		{	e.printStackTrace();	}
+		return splitPoint;
+	}
+	
+	/**
+	 * look around the given split point (a quarter of the page on each side) 
+	 * for the split point with the shortest separator, the nearest one wins a tie.
+	 */
+	private int shortestSeparatorPoint(KeyClass[] keys, int splitPoint) throws KeyNotMatchException
+	{
+		int window = keys.length/4;
+		int best = splitPoint;
+		int bestLength = Integer.MAX_VALUE;
+		for (int i = Math.max(1, splitPoint - window); i <= Math.min(keys.length - 1, splitPoint + window); i++) 
+		{
+			// never separate two equal keys
+			if (BT.keyCompare(keys[i-1], keys[i]) == 0)	continue;
+			int length = SplitPolicy.shortestSeparator(((StringKey) keys[i-1]).getKey(),
+					((StringKey) keys[i]).getKey()).length();
+			if (length < bestLength || (length == bestLength && Math.abs(i - splitPoint) < Math.abs(best - splitPoint)))
+			{
+				best = i;
+				bestLength = length;
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * @return the keys of the page records in order
+	 */
+	private KeyClass[] getKeys(BTSortedPage page) throws IOException, KeyNotMatchException, NodeNotMatchException, ConvertException
+	{
+		KeyClass[] keys = new KeyClass[page.numberOfRecords()];
+		RID iteratorRecord = page.firstRecord();
+		for (int i = 0; iteratorRecord != null && i < keys.length; i++) 
+		{
+			keys[i] = BT.getEntryFromBytes(page.getpage(), page.getSlotOffset(iteratorRecord.slotNo),
+					page.getSlotLength(iteratorRecord.slotNo), headerPage.get_keyType(), page.getType()).key;
+			iteratorRecord = page.nextRecord(iteratorRecord);
+		}
+		return keys;
+	}
+
+	/**
+	 * @return true if a record of the leaf page has the given key
+	 */
+	private boolean containsKey(BTLeafPage page, KeyClass key)
+	{
+		try 
+		{
+			RID iteratorRecord = new RID();
+			for (KeyDataEntry entry = page.getFirst(iteratorRecord); entry != null; entry = page.getNext(iteratorRecord)) 
+			{
+				if (BT.keyCompare(entry.key, key) == 0)	return true;
+			}
+		} 
+		catch (KeyNotMatchException e) 
+		{	e.printStackTrace();	}
+		return false;
+	}
+	
+	/**
+	 * update the header statistics after an entry with the given key was deleted from the leaf page
+	 */
+	private void countDeletion(BTLeafPage page, KeyClass key)
+	{
+		headerPage.setEntryCount(headerPage.getEntryCount() - 1);
+		aggregates.counted(-1);
+		if (!containsKey(page, key))	headerPage.setDistinctKeyCount(headerPage.getDistinctKeyCount() - 1);
+	}
+
+	private KeyDataEntry getLastEntry(BTLeafPage page)
+	{
+	    RID iteratorRecord = new RID();
+	    KeyDataEntry currentEntry = page.getFirst(iteratorRecord);
+	    KeyDataEntry nextEntry = page.getNext(iteratorRecord);
+	    while(nextEntry!= null)
+	    {
+	        currentEntry = page.getCurrent(iteratorRecord);
+	        nextEntry = page.getNext(iteratorRecord);
+	    }
+	    return currentEntry;
+	}
+	
+	private RID getLastRecord(BTIndexPage page)
+	{
+	    RID currentRecord = null;
+		try {
+			currentRecord = page.firstRecord();
+
+		    RID nextRecord = page.nextRecord(currentRecord);
+		    while(nextRecord!= null)
+		    {
+		        currentRecord = page.nextRecord(currentRecord);
+		        nextRecord = page.nextRecord(nextRecord);
+		    }
+		    return currentRecord;
+		    
+		} catch (IOException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
+		}
+	    return currentRecord;
+	}
+
+	
+	
+	private boolean[] findLocation(BTSortedPage parentPage,BTSortedPage splittedPage , KeyDataEntry entry)
+	{
+	    boolean[] location = new boolean[3];
+		try
+		{
+			RID leftRecord = parentPage.firstRecord();
+			RID rightRecord = splittedPage.firstRecord();
+	        
+		    if(parentPage.getType() == NodeType.INDEX)
+		    {
+		    	BTIndexPage indexPage = new BTIndexPage(parentPage,headerPage.get_keyType());
+				indexPage.setType(NodeType.INDEX);
+
+		    	BTIndexPage splittedIndexPage = new BTIndexPage(splittedPage,headerPage.get_keyType());
+				splittedIndexPage.setType(NodeType.INDEX);
+
+		    	KeyDataEntry leftData = indexPage.getFirst(leftRecord);
+			    // get right most data entry in the parent page (left)
+		        for (int i = 0; i < parentPage.numberOfRecords()-1 ; i++) 
+		        {   leftData = indexPage.getNext(leftRecord);  }
+			    KeyDataEntry rightData = splittedIndexPage.getFirst(rightRecord);
+		        
+		        // insert to the left page
+	            if (BT.keyCompare(entry.key, leftData.key) < 0  && BT.keyCompare(entry.key, rightData.key) < 0 )
+	            {
+	                location[0] = true;
+	                return location;
+	            }
+		        // insert to the right page
+	            else if(BT.keyCompare(entry.key, leftData.key) > 0 && BT.keyCompare(entry.key, rightData.key) > 0  )
+	            {
+	                location[1] = true;
+	                return location;
+	            }
+	            // insert to the upper page
+	            else 
+	            {
+	                location[2] = true;
+	                return location;
+	            }
+		    }
+		    else if(parentPage.getType() == NodeType.LEAF)
+		    {
+		    	BTLeafPage leafPage = new BTLeafPage(parentPage,headerPage.get_keyType());
+				leafPage.setType(NodeType.LEAF);
+
+		    	BTLeafPage splittedleafPage = new BTLeafPage(splittedPage,headerPage.get_keyType());
+				splittedleafPage.setType(NodeType.LEAF);
+
+		    	KeyDataEntry leftData = leafPage.getFirst(leftRecord);
+			    // get right most data entry in the parent page (left)
+		        for (int i = 0; i <  parentPage.numberOfRecords()-1 ; i++) 
+		        {   leftData = leafPage.getNext(leftRecord);  }
+			    KeyDataEntry rightData = splittedleafPage.getFirst(rightRecord);
+		    	
+				// insert to the left page if less than right
+				if (BT.keyCompare(entry.key, rightData.key) < 0) 
+				{
+				    location[0] = true;
+				    return location ;
+				}
+		        // insert to the right page if greater than left or equal to right
+				else if (BT.keyCompare(entry.key, leftData.key) > 0 || BT.keyCompare(entry.key, rightData.key) == 0) 
+				{
+				   	location[1]= true;
+				   	return location;
+				}
+		    }
+		} catch (IOException | KeyNotMatchException  e) {
+			e.printStackTrace();
+		}
+	        return location;
+	}
+
+
+    // unpin the root
+	private BTLeafPage search(KeyClass key, RID rid,BTIndexPage rootPage) 
+	{
+		BTSortedPage currentPage = null;
+		try 
+		{
+		    PageId currentPageId = rootPage.getPageNoByKey(key);
+		    //unpin root
+		    
+				unpinPage(rootPage.getCurPage(),false);
+			
+		    // load retrieved page by id
+	        currentPage = pinSortedPage(currentPageId);
+	        aggregates.descended(currentPageId.pid);
+	        
+	        while(currentPage.getType() == NodeType.INDEX)
+	        {
+	            BTIndexPage currentIndexPage = new BTIndexPage(currentPage,headerPage.get_keyType());
+	            currentPageId = currentIndexPage.getPageNoByKey(key);
+	            unpinPage(currentPage.getCurPage(),false);
+	            currentPage = pinSortedPage(currentPageId);
+	            aggregates.descended(currentPageId.pid);
+	        }
+		} 
+		catch (ReplacerException | PageUnpinnedException| HashEntryNotFoundException | InvalidFrameNumberException| IOException | ConstructPageException e) 
+		{	e.printStackTrace();	}
+        return (new BTLeafPage(currentPage , headerPage.get_keyType())  );
+	}
+
+	/**
+	 * delete leaf entry given its pair. `rid' is IN the data entry; it is not
+	 * the id of the data entry)
+	 * 
+	 * @param key	- the key in pair . Input Parameter.
+	 * @param rid	- the rid in pair . Input Parameter.
+	 * @return true if deleted. false if no such record.
+	 */
+	@Override
+	public boolean Delete(KeyClass key, RID rid) 
+	{
+		long start = System.nanoTime();
+		boolean traced = traceBegin("delete", key);
+		// search the page and delete the record
         boolean deleted = false;
+        boolean completed = false;
 		 try 
 		 {
 			if (headerPage != null) 
 			{
+			 beginOperation();
 		     HFPage page = new HFPage();
-	    	 SystemDefs.JavabaseBM.pinPage(headerPage.get_rootId(), page, false);
+	    	 pinPage(headerPage.get_rootId(), page, false);
 	         BTSortedPage rootPage = new BTSortedPage(page,headerPage.get_keyType());
+	         aggregates.descended(headerPage.get_rootId().pid);
 			 if(rootPage.getType() == NodeType.INDEX)
 			 {
     			// search for the key in the tree and get it's page
@@ -644,18 +1473,29 @@ public class BTreeFile extends IndexFile implements GlobalConst {
     				}
     			}
     			
-    			SystemDefs.JavabaseBM.unpinPage(requiredPage.getCurPage(),true);
+    			if (deleted)	countDeletion(requiredPage, key);
+    			// give the page back once its last record is gone
+    			if (deleted && requiredPage.numberOfRecords() == 0)	reclaimLeaf(key, requiredPage);
+    			unpinPage(requiredPage.getCurPage(),true);
 			 }
 			 else 	
 			 {
 			    	deleted = rootPage.deleteSortedRecord(rid);
-			        SystemDefs.JavabaseBM.unpinPage( rootPage.getCurPage(),true);	
+			    	if (deleted)	countDeletion(new BTLeafPage(rootPage, headerPage.get_keyType()), key);
+			        unpinPage( rootPage.getCurPage(),true);	
 			 }
+			 completed = true;
 		 }
 			
 		} catch (IOException | KeyNotMatchException | DeleteRecException | ReplacerException | HashOperationException | PageUnpinnedException | InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException | PagePinnedException | BufMgrException | HashEntryNotFoundException  e) {
 			e.printStackTrace();
 		}
+		finally {
+			if (completed)	endOperation();
+			else abortOperation();
+			if (headerPage != null)	getMetrics().deleted(System.nanoTime() - start, operationPins);
+			traceEnd(traced);
+		}
     	return deleted;
 	}
 
@@ -672,46 +1512,610 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public BTFileScan new_scan(KeyClass lo_key, KeyClass hi_key) 
 	{
+		boolean traced = traceBegin("new_scan", lo_key);
+		releaseDroppedScans();
 		BTFileScan scanner = null;
 		if (headerPage != null) 
     	{
-    		scanner = new BTFileScan();
+    		scanner = newScanner(lo_key, hi_key);
     		try 
     		{
-    			scanner.btree = this;
-    			scanner.highKey = hi_key;
-    			scanner.lowKey = lo_key;
-    			scanner.keyType = headerPage.get_keyType();
-    			scanner.maxKeysize = headerPage.getMaxKeyFieldLength();
-    			
+    			// the leaf of the low key, the leftmost leaf without one
+    			PageId leafId = leafFor(lo_key);
     			HFPage page = new HFPage();
-    			SystemDefs.JavabaseBM.pinPage(headerPage.get_rootId(), page, false);
-    			BTSortedPage currentPage = new BTSortedPage(page, headerPage.get_keyType());
-    			PageId currentPageId = new PageId();
-    			while(currentPage.getType()==NodeType.INDEX)
-    			{
-	                BTIndexPage currentIndexPage = new BTIndexPage(currentPage,headerPage.get_keyType());
-	                currentPageId = currentIndexPage.getLeftLink();
-	                SystemDefs.JavabaseBM.unpinPage(currentPage.getCurPage(),false);
-	                currentPage = new BTSortedPage(currentPageId,headerPage.get_keyType()); //
-    			}
-    			scanner.currentLeaf = new BTLeafPage(currentPage,headerPage.get_keyType());
+    			pinPageForScan(leafId, page);
+    			scanner.currentLeaf = new BTLeafPage(page,headerPage.get_keyType());
     			scanner.currentRecord = scanner.currentLeaf.firstRecord();
-    			
+    			scanner.holding(leafId);
     		} 
     		catch (ReplacerException | HashOperationException
     				| PageUnpinnedException | InvalidFrameNumberException
     				| PageNotReadException | BufferPoolExceededException
-    				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException 
-    				| ConstructPageException e) 
+    				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+    				| KeyNotMatchException e) 
     		{	e.printStackTrace();	}
     	}
+		traceEnd(traced);
+		return scanner;
+	}
+
+	/**
+	 * the leaf where the first entry with the key is, or would be: the child 
+	 * of the last record with a smaller key at every level, since the first
+	 * duplicate of a key may be left of an equal separator.
+	 * @param key - the key, null for the leftmost leaf. Input parameter.
+	 * @return - the leaf, not pinned
+	 */
+	PageId leafFor(KeyClass key) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		PageId pageId = headerPage.get_rootId();
+		while (true)
+		{
+			HFPage page = new HFPage();
+			pinPageForScan(pageId, page);
+			PageId childId = (page.getType() == NodeType.INDEX) 
+					? childFor(new BTIndexPage(page, headerPage.get_keyType()), key) : null;
+			unpinPage(pageId, false);
+			if (childId == null)	return pageId;
+			pageId = childId;
+		}
+	}
+	
+	/**
+	 * @return - the child of the last record with a key < key, the left link if there is none
+	 */
+	PageId childFor(BTIndexPage indexPage, KeyClass key) throws IOException, KeyNotMatchException
+	{
+		PageId childId = indexPage.getLeftLink();
+		RID iteratorRecord = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord);
+				entry != null && key != null && BT.keyCompare(entry.key, key) < 0; entry = indexPage.getNext(iteratorRecord))
+		{	childId = ((IndexData) entry.data).getData();	}
+		return childId;
+	}
+
+	private BTFileScan newScanner(KeyClass lo_key, KeyClass hi_key)
+	{
+		BTFileScan scanner = new BTFileScan();
+		scanner.pin = pins.opened(scanner);
+		scanner.btree = this;
+		scanner.opened(lo_key, hi_key);
+		scanner.highKey = hi_key;
+		scanner.lowKey = lo_key;
+		scanner.keyType = headerPage.get_keyType();
+		scanner.maxKeysize = headerPage.getMaxKeyFieldLength();
+		return scanner;
+	}
+
+	/**
+	 * go on with the range of an earlier scan after the last entry it returned,
+	 * e.g. the next page of results of a stateless server. The scan goes down 
+	 * from the root to the last key of the token instead of walking the leaves
+	 * before it. The entries inserted or deleted since the token was taken are
+	 * seen or not depending on their place, like in one long scan.
+	 * @param token - from BTFileScan.token of a scan of this file. Input parameter.
+	 * @return - the scan, positioned after the last entry of the token
+	 * @throws IllegalArgumentException - if the keys of the token are of another type
+	 */
+	public BTFileScan resume_scan(ScanToken token)
+	{
+		KeyClass lastKey = token.getLastKey();
+		if (lastKey == null && !token.isEnd())	return new_scan(token.getLowKey(), token.getHighKey());
+		if (headerPage == null)	return null;
+		for (KeyClass key : new KeyClass[] { token.getLowKey(), token.getHighKey(), lastKey })
+		{
+			if (key != null && !keyMatches(key))	throw new IllegalArgumentException("the token has keys of another type");
+		}
+		boolean traced = traceBegin("resume_scan", lastKey);
+		releaseDroppedScans();
+		BTFileScan scanner = newScanner(token.getLowKey(), token.getHighKey());
+		try 
+		{
+			if (token.isEnd())
+			{
+				// the earlier scan had returned everything
+				scanner.resume(token, 0);
+				return scanner;
+			}
+			int skip = returnedDuplicates(lastKey, token.getLastRid(), token.getDuplicates());
+			PageId leafId = leafFor(lastKey);
+			HFPage page = new HFPage();
+			pinPageForScan(leafId, page);
+			scanner.currentLeaf = new BTLeafPage(page, headerPage.get_keyType());
+			scanner.currentRecord = new RID();
+			scanner.holding(leafId);
+			scanner.resume(token, skip);
+		} 
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e) 
+		{	e.printStackTrace();	}
+		finally
+		{	traceEnd(traced);	}
+		return scanner;
+	}
+
+	/**
+	 * the entries with the last key that a scan returned, as far as they are
+	 * left: up to the one with the last record id, or as many as were returned
+	 * if it is gone. A scan going down to the last key again skips them.
+	 * @param lastKey - the last key returned. Input parameter.
+	 * @param lastRid - the record id of the last entry returned. Input parameter.
+	 * @param duplicates - number of entries returned with the last key. Input parameter.
+	 * @return - number of entries to skip
+	 */
+	int returnedDuplicates(KeyClass lastKey, RID lastRid, int duplicates) throws ReplacerException,
+			HashOperationException, PageUnpinnedException, InvalidFrameNumberException, PageNotReadException,
+			BufferPoolExceededException, PagePinnedException, BufMgrException, IOException,
+			HashEntryNotFoundException, KeyNotMatchException
+	{
+		try (BTCursor cursor = new BTCursor(this))
+		{
+			List<RID> rids = cursor.find(lastKey);
+			int skip = Math.min(duplicates, rids.size());
+			for (int i = 0; i < rids.size(); i++)
+			{
+				RID rid = rids.get(i);
+				if (rid.pageNo.pid == lastRid.pageNo.pid && rid.slotNo == lastRid.slotNo)	skip = i + 1;
+			}
+			return skip;
+		}
+	}
+
+	/**
+	 * the entries with lo_key <= key <= hi_key as a stream, in key order. The
+	 * stream reads the leaf chain like new_scan and keeps at most one leaf 
+	 * pinned per part; close it (e.g. with try-with-resources) to give the pins
+	 * back when it is not read to the end. A parallel stream is split at the 
+	 * separators of the index pages. Its parts lock the file while they read
+	 * a page, so writers on other threads must hold the lock of the file too.
+	 * @param lo_key - lower bound, null for no lower bound. Input parameter.
+	 * @param hi_key - upper bound, null for no upper bound. Input parameter.
+	 * @return - the stream, empty if the file is closed
+	 */
+	public Stream<KeyDataEntry> stream(KeyClass lo_key, KeyClass hi_key)
+	{
+		if (headerPage == null)	return Stream.empty();
+		releaseDroppedScans();
+		final BTSpliterator spliterator = new BTSpliterator(this, lo_key, hi_key);
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable() {
+			@Override
+			public void run() {
+				spliterator.close();
+			}
+		});
+	}
+
+	/**
+	 * publish the entries with lo_key <= key <= hi_key in key order, as the 
+	 * subscribers request them, e.g. to send them over the network. No page 
+	 * stays pinned while a subscriber is slow: the entries are read in batches
+	 * under the lock of the file and delivered on the common fork join pool.
+	 * Writers on other threads must hold the lock of the file.
+	 * @param lo_key - lower bound, null for no lower bound. Input parameter.
+	 * @param hi_key - upper bound, null for no upper bound. Input parameter.
+	 */
+	public Flow.Publisher<KeyDataEntry> publisher(KeyClass lo_key, KeyClass hi_key)
+	{
+		return publisher(lo_key, hi_key, ForkJoinPool.commonPool(), BTPublisher.DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param executor - runs the deliveries to the subscribers. Input parameter.
+	 * @param batchSize - most entries read under one lock. Input parameter.
+	 * @see #publisher(KeyClass, KeyClass)
+	 */
+	public Flow.Publisher<KeyDataEntry> publisher(KeyClass lo_key, KeyClass hi_key, Executor executor, int batchSize)
+	{
+		return new BTPublisher(this, lo_key, hi_key, executor, Math.max(1, batchSize));
+	}
+
+	/**
+	 * create a scan like new_scan that reads a snapshot of the tree: inserts and
+	 * deletes made while the scan is open are not seen by it, and the scan holds
+	 * no pins, so it never blocks them. The pages the writers change are copied
+	 * until the scan is destroyed.
+	 * @param lo_key - the key where we begin scanning. Input parameter.
+	 * @param hi_key - the key where we stop scanning. Input parameter.
+	 * @return
+	 */
+	public BTFileScan new_snapshot_scan(KeyClass lo_key, KeyClass hi_key) 
+	{
+		boolean traced = traceBegin("new_snapshot_scan", lo_key);
+		BTFileScan scanner = null;
+		if (headerPage != null) 
+		{
+			scanner = new BTFileScan();
+			BTVersions.Snapshot snapshot = versions.snapshot(this);
+			try 
+			{
+				scanner.btree = this;
+				scanner.opened(lo_key, hi_key);
+				scanner.snapshot = snapshot;
+				scanner.highKey = hi_key;
+				scanner.lowKey = lo_key;
+				scanner.keyType = headerPage.get_keyType();
+				scanner.maxKeysize = headerPage.getMaxKeyFieldLength();
+				
+				HFPage page = new HFPage(snapshot.read(snapshot.getRootId()));
+				while(page.getType()==NodeType.INDEX)
+				{
+					BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+					page = new HFPage(snapshot.read(childFor(indexPage, lo_key)));
+				}
+				scanner.currentLeaf = new BTLeafPage(page, headerPage.get_keyType());
+				scanner.currentRecord = scanner.currentLeaf.firstRecord();
+			} 
+			catch (ReplacerException | HashOperationException
+					| PageUnpinnedException | InvalidFrameNumberException
+					| PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+					| KeyNotMatchException e) 
+			{	e.printStackTrace();	}
+		}
+		traceEnd(traced);
 		return scanner;
 	}
 
+	/**
+	 * @return - true if the key has the key type of the tree
+	 */
+	boolean keyMatches(KeyClass key)
+	{
+		return (key instanceof IntegerKey && headerPage.get_keyType() == AttrType.attrInteger)
+				|| (key instanceof StringKey && headerPage.get_keyType() == AttrType.attrString);
+	}
+
+	/**
+	 * the record ids of many keys at once. The keys are looked up in key order
+	 * with one cursor, so the keys of the same leaf are all found with a single
+	 * pin of it, and close keys are reached through the next links of the 
+	 * leaves instead of a new descent from the root.
+	 * @param keys - the keys to look for, in any order. Input parameter.
+	 * @return - the record ids of the entries with keys[i] at i, an empty array 
+	 * 			 if there is none or the key has the wrong type
+	 */
+	public RID[][] lookup(KeyClass[] keys)
+	{
+		RID[][] found = new RID[keys.length][];
+		Arrays.fill(found, new RID[0]);
+		if (headerPage == null)	return found;
+		long start = System.nanoTime();
+		boolean traced = traceBegin("lookup", null);
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (keyMatches(keys[i]))	order.add(i);
+		}
+		final KeyClass[] sorting = keys;
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				try {
+					return BT.keyCompare(sorting[a], sorting[b]);
+				} catch (KeyNotMatchException e) {
+					return 0;
+				}
+			}
+		});
+
+		releaseDroppedScans();
+		BTCursor cursor = new BTCursor(this);
+		try 
+		{
+			int previous = -1;
+			for (int i : order)
+			{
+				// a repeated key has the same entries
+				if (previous >= 0 && BT.keyCompare(keys[previous], keys[i]) == 0)
+				{
+					found[i] = found[previous];
+					continue;
+				}
+				List<RID> rids = cursor.find(keys[i]);
+				found[i] = rids.toArray(new RID[rids.size()]);
+				previous = i;
+			}
+		} 
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e) 
+		{	e.printStackTrace();	}
+		finally
+		{
+			cursor.close();
+			getMetrics().scanned(true, System.nanoTime() - start, cursor.getLeavesVisited());
+			traceEnd(traced);
+		}
+		return found;
+	}
+
+	/**
+	 * map the database file in memory for lookups that bypass the buffer manager.
+	 * The log is forced and the dirty pages of the buffer pool are written to the
+	 * file first. The tree keeps the store informed of the pages it changes until 
+	 * the store is closed.
+	 * @return - the mapped store, null if the file is closed or cannot be mapped
+	 */
+	public MappedPageStore map()
+	{
+		if (headerPage != null && mapped == null) 
+		{
+			try 
+			{
+				mapped = new MappedPageStore(this);
+			} 
+			catch (IOException | HashOperationException | PageUnpinnedException | PageNotFoundException
+					| BufMgrException e) 
+			{	e.printStackTrace();	}
+		}
+		return mapped;
+	}
+	
+	void unmap(MappedPageStore store)
+	{
+		if (mapped == store)	mapped = null;
+	}
+
 	public BTreeHeaderPage getHeaderPage() 
 	{
 		return headerPage;
 	}
 
+	/**
+	 * defragment the leaf level: merge neighbouring leaves that fit in one page,
+	 * dropping their separators from the parents, then move the leaves so that 
+	 * the leaf chain follows the page ids. Lookups may run between the steps;
+	 * the leaves of open scans are left where they are.
+	 * @return - number of leaf pages given back to the free list
+	 */
+	public int compact()
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return new BTCompactor(this).compact();
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+					| DeleteRecException e) 
+			{	e.printStackTrace();	}
+		}
+		return 0;
+	}
+
+	/**
+	 * estimate the fraction of the entries with lo_key <= key <= hi_key 
+	 * without scanning, by descending both bounds through the index pages
+	 * and interpolating from the fanout of every level.
+	 * @param lo_key - lower bound, null for no lower bound. Input parameter.
+	 * @param hi_key - upper bound, null for no upper bound. Input parameter.
+	 * @return - the estimated selectivity between 0 and 1
+	 */
+	public double estimateSelectivity(KeyClass lo_key, KeyClass hi_key)
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return new BTEstimator(this).selectivity(lo_key, hi_key);
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+					| KeyNotMatchException e) 
+			{	e.printStackTrace();	}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the estimated number of entries with lo_key <= key <= hi_key
+	 * @see #estimateSelectivity(KeyClass, KeyClass)
+	 */
+	public int estimateRangeCount(KeyClass lo_key, KeyClass hi_key)
+	{
+		if (headerPage == null)	return 0;
+		return (int) Math.round(estimateSelectivity(lo_key, hi_key) * headerPage.getEntryCount());
+	}
+
+	/**
+	 * count the entries with lo_key <= key <= hi_key from the index: only the
+	 * pages on the paths of the two bounds are read once the number of entries
+	 * below the pages in between is known. Those numbers are kept in memory and
+	 * kept up to date by the inserts and deletes, but not stored: the first 
+	 * count after the file is opened reads every page of the range (O(n)), the
+	 * later ones O(log n) pages plus the pages split since.
+	 * @param lo_key - lower bound, null for no lower bound. Input parameter.
+	 * @param hi_key - upper bound, null for no upper bound. Input parameter.
+	 * @return - the exact number of entries
+	 */
+	public int count(KeyClass lo_key, KeyClass hi_key)
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return aggregates.count(lo_key, hi_key);
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+					| KeyNotMatchException e) 
+			{	e.printStackTrace();	}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return - the smallest key, from the leftmost path; null if the tree is empty
+	 */
+	public KeyClass min()
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return aggregates.min();
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException e) 
+			{	e.printStackTrace();	}
+		}
+		return null;
+	}
+
+	/**
+	 * @return - the largest key, from the rightmost path; null if the tree is empty
+	 */
+	public KeyClass max()
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return aggregates.max();
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException e) 
+			{	e.printStackTrace();	}
+		}
+		return null;
+	}
+
+	/**
+	 * position of a key in the key order, from the index like count, at the
+	 * same cost: every page before the key the first time after the file is 
+	 * opened, O(log n) pages afterwards.
+	 * @param key - the key, need not be in the tree. Input parameter.
+	 * @return - the number of entries with a smaller key
+	 */
+	public int rank(KeyClass key)
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return aggregates.rank(key);
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+					| KeyNotMatchException e) 
+			{	e.printStackTrace();	}
+		}
+		return 0;
+	}
+
+	/**
+	 * the entry at a position of the key order, e.g. the first entry of a page
+	 * of results or a percentile. Goes down one path choosing the child by the
+	 * number of entries below it, instead of scanning up to the position. The
+	 * numbers are those of count: the first call after the file is opened reads
+	 * the pages before the position, later calls O(log n) pages.
+	 * @param position - 0 for the first entry. Input parameter.
+	 * @return - the entry, null if the position is past the last entry
+	 */
+	public KeyDataEntry select(int position)
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return aggregates.select(position);
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException e) 
+			{	e.printStackTrace();	}
+		}
+		return null;
+	}
+
+	/**
+	 * equi-depth histogram of the keys, read off single root-to-leaf walks.
+	 * @param buckets - number of buckets. Input parameter.
+	 * @return - buckets + 1 boundaries, from the smallest to the largest key;
+	 * 			 null if the tree is empty.
+	 */
+	public KeyClass[] histogram(int buckets)
+	{
+		if (headerPage != null && buckets > 0)
+		{
+			try 
+			{
+				BTEstimator estimator = new BTEstimator(this);
+				KeyClass[] boundaries = new KeyClass[buckets + 1];
+				for (int i = 0; i <= buckets; i++) 
+				{
+					boundaries[i] = estimator.quantile((double) i / buckets);
+					if (boundaries[i] == null)	return null;
+				}
+				return boundaries;
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException e) 
+			{	e.printStackTrace();	}
+		}
+		return null;
+	}
+
+	/**
+	 * random sample of the data entries taken by random root-to-leaf walks.
+	 * @param size - number of entries wanted. Input parameter.
+	 * @param random - source of randomness. Input parameter.
+	 * @return - the sampled entries (with replacement), fewer than size only
+	 * 			 if the tree is empty or nearly so.
+	 */
+	public KeyDataEntry[] sample(int size, Random random)
+	{
+		if (headerPage != null)
+		{
+			try 
+			{
+				return new BTEstimator(this).sample(size, random);
+			} 
+			catch (ReplacerException | HashOperationException | PageUnpinnedException
+					| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+					| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException e) 
+			{	e.printStackTrace();	}
+		}
+		return new KeyDataEntry[0];
+	}
+
+	/**
+	 * check the structure of the whole tree, see BTreeVerifier. Must not be
+	 * called in the middle of an operation.
+	 * @return - the problems found, empty if the tree is sound
+	 */
+	public List<String> verify()
+	{
+		return new BTreeVerifier(this).verify();
+	}
+
+	/**
+	 * choose how full leaves are split from now on, the policy is recorded in
+	 * the header page. Index pages are always split in the middle.
+	 * @param policy - one of the SplitPolicy constants. Input parameter.
+	 * @param fillFactor - percentage of records kept in the old page (1 - 99). Input parameter.
+	 */
+	public void setSplitPolicy(short policy, int fillFactor)
+	{
+		if (headerPage != null)
+		{
+			if (fillFactor < 1 || fillFactor > 99)	fillFactor = SplitPolicy.DEFAULT_FILL_FACTOR;
+			headerPage.setSplitPolicy(policy, fillFactor);
+		}
+	}
+
 }
\ No newline at end of file
@@ -15,6 +15,20 @@ public class BTreeHeaderPage extends HFPage
 {
 	private int maxKeyFieldLength,keyType,rootPageId;
 	// slot 1 , prev , next
+	// slot 2 holds the split policy (length) and the fill factor (offset)
+	private static final int SPLIT_POLICY_SLOT = 2;
+	// tree statistics are kept as integers right after slot 2
+	private static final int HEIGHT = DPFIXED + 3 * SIZE_OF_SLOT;
+	private static final int ENTRY_COUNT = HEIGHT + 4;
+	private static final int LEAF_PAGE_COUNT = ENTRY_COUNT + 4;
+	private static final int INDEX_PAGE_COUNT = LEAF_PAGE_COUNT + 4;
+	private static final int DISTINCT_KEY_COUNT = INDEX_PAGE_COUNT + 4;
+	// pages taken out of the tree, chained through their prev links
+	private static final int FREE_LIST_HEAD = DISTINCT_KEY_COUNT + 4;
+	private static final int FREE_PAGE_COUNT = FREE_LIST_HEAD + 4;
+	// written by insertAll: the fields above hold what was set, not old bytes
+	private static final int FORMAT = FREE_PAGE_COUNT + 4;
+	private static final int FORMAT_MAGIC = 0x42545232;
 
 	public BTreeHeaderPage(Page page) {
 		super(page);
@@ -84,6 +98,141 @@ public class BTreeHeaderPage extends HFPage
 		
 	}
 
+	/**
+	 * @return the split policy of the tree, one of the SplitPolicy constants.
+	 */
+	public short getSplitPolicy() {
+		try 
+		{
+			short policy = getSlotLength(SPLIT_POLICY_SLOT);
+			if (hasFormat() && policy >= SplitPolicy.FIXED_FILL && policy <= SplitPolicy.SHORTEST_SEPARATOR)
+				return policy;
+		}
+		catch (IOException e) {	e.printStackTrace();	}
+		return SplitPolicy.FIXED_FILL;
+	}
+
+	/**
+	 * @return the percentage of records kept in the old page on a split.
+	 *         Files created before the policy was recorded read as the default.
+	 */
+	public int getFillFactor() {
+		try 
+		{
+			int fillFactor = getSlotOffset(SPLIT_POLICY_SLOT);
+			if (hasFormat() && fillFactor > 0 && fillFactor < 100)
+				return fillFactor;
+		}
+		catch (IOException e) {	e.printStackTrace();	}
+		return SplitPolicy.DEFAULT_FILL_FACTOR;
+	}
+
+	public void setSplitPolicy(short policy, int fillFactor) 
+	{
+		try 
+		{
+			setSlot(SPLIT_POLICY_SLOT, policy, fillFactor);
+		}
+		catch (IOException e) 
+		{	e.printStackTrace();	}
+	}
+
+	/**
+	 * @return false for a file created before the split policy and the 
+	 * 		   statistics were recorded, whose header holds leftover bytes there
+	 */
+	public boolean hasFormat() {
+		return getInt(FORMAT) == FORMAT_MAGIC;
+	}
+
+	/**
+	 * @return number of levels in the tree, 1 when the root is a leaf
+	 */
+	public int getHeight() {
+		return getInt(HEIGHT);
+	}
+
+	public void setHeight(int height) {
+		setInt(height, HEIGHT);
+	}
+
+	/**
+	 * @return number of data entries in the leaf pages
+	 */
+	public int getEntryCount() {
+		return getInt(ENTRY_COUNT);
+	}
+
+	public void setEntryCount(int entryCount) {
+		setInt(entryCount, ENTRY_COUNT);
+	}
+
+	public int getLeafPageCount() {
+		return getInt(LEAF_PAGE_COUNT);
+	}
+
+	public void setLeafPageCount(int leafPageCount) {
+		setInt(leafPageCount, LEAF_PAGE_COUNT);
+	}
+
+	public int getIndexPageCount() {
+		return getInt(INDEX_PAGE_COUNT);
+	}
+
+	public void setIndexPageCount(int indexPageCount) {
+		setInt(indexPageCount, INDEX_PAGE_COUNT);
+	}
+
+	/**
+	 * @return estimate of the number of distinct keys, duplicates are only 
+	 * 		   detected when they share a leaf page
+	 */
+	public int getDistinctKeyCount() {
+		return getInt(DISTINCT_KEY_COUNT);
+	}
+
+	public void setDistinctKeyCount(int distinctKeyCount) {
+		setInt(distinctKeyCount, DISTINCT_KEY_COUNT);
+	}
+
+	/**
+	 * @return the first page of the free list, INVALID_PAGE if the list is empty
+	 */
+	public PageId getFreeListHead() {
+		int pid = getInt(FREE_LIST_HEAD);
+		// files written before the free list existed hold 0 here
+		return new PageId(pid > 0 ? pid : INVALID_PAGE);
+	}
+
+	public void setFreeListHead(PageId freeListHead) {
+		setInt(freeListHead.pid, FREE_LIST_HEAD);
+	}
+
+	public int getFreePageCount() {
+		return getInt(FREE_PAGE_COUNT);
+	}
+
+	public void setFreePageCount(int freePageCount) {
+		setInt(freePageCount, FREE_PAGE_COUNT);
+	}
+
+	private int getInt(int position) {
+		try 
+		{
+			return Convert.getIntValue(position, getpage());
+		}
+		catch (IOException e) {	e.printStackTrace();	}
+		return -1;
+	}
+
+	private void setInt(int value, int position) {
+		try 
+		{
+			Convert.setIntValue(value, position, getpage());
+		}
+		catch (IOException e) {	e.printStackTrace();	}
+	}
+
 	// set instances from the page (RootPageID,TypeOfKey,LengthOfKey)
 	public void loadData() {
 		try 
@@ -95,10 +244,37 @@ public class BTreeHeaderPage extends HFPage
 		catch (IOException e) {	e.printStackTrace();	}
 	}
 
+	/**
+	 * record the statistics of a file created before they were kept, with 
+	 * the default split policy and an empty free list
+	 */
+	public void upgrade(int height, int entryCount, int leafPageCount, int indexPageCount, int distinctKeyCount)
+	{
+	    setSplitPolicy(SplitPolicy.FIXED_FILL, SplitPolicy.DEFAULT_FILL_FACTOR);
+	    setHeight(height);
+	    setEntryCount(entryCount);
+	    setLeafPageCount(leafPageCount);
+	    setIndexPageCount(indexPageCount);
+	    setDistinctKeyCount(distinctKeyCount);
+	    setFreeListHead(new PageId(INVALID_PAGE));
+	    setFreePageCount(0);
+	    setInt(FORMAT_MAGIC, FORMAT);
+	}
+
 	public void insertAll(PageId rootPageID, int keytype, int keysize) 
 	{
 		setRootPageId(rootPageID);
 	    setKeyType(keytype);
 	    setMaxKeyFieldLength(keysize);
+	    setSplitPolicy(SplitPolicy.FIXED_FILL, SplitPolicy.DEFAULT_FILL_FACTOR);
+	    // a new tree is a single empty leaf
+	    setHeight(1);
+	    setEntryCount(0);
+	    setLeafPageCount(1);
+	    setIndexPageCount(0);
+	    setDistinctKeyCount(0);
+	    setFreeListHead(new PageId(INVALID_PAGE));
+	    setFreePageCount(0);
+	    setInt(FORMAT_MAGIC, FORMAT);
 	}
 }
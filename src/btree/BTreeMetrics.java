@@ -0,0 +1,294 @@
+package btree;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters and histograms of the operations of one BTreeFile: what the
+ * inserts, deletes, lookups and scans cost, how often and at which level
+ * the pages split, how many pages every operation pins and how many leaves
+ * every scan walks through. A lookup is a scan whose low and high keys are
+ * equal.
+ *
+ * Buffer misses are estimated: the buffer manager does not report them, so
+ * the pins of the tree are replayed on an LRU list as large as the buffer
+ * pool, and a pin of a page that is not on the list counts as a miss.
+ *
+ * Read them with snapshot() or through JMX once register() is called.
+ *
+ * @author MaTrix
+ *
+ */
+public class BTreeMetrics implements BTreeMetricsMBean
+{
+	// splits of the levels above are counted with the highest one
+	private static final int LEVELS = 16;
+
+	private long inserts;
+	private long deletes;
+	private long lookups;
+	private long scans;
+	private long[] splits = new long[LEVELS]; // level 0 are the leaves
+	private long rootSplits;
+	private long pagesPinned;
+	private long bufferMisses;
+	private long scanLeavesVisited;
+
+	private LatencyHistogram insertLatency = new LatencyHistogram();
+	private LatencyHistogram deleteLatency = new LatencyHistogram();
+	private LatencyHistogram lookupLatency = new LatencyHistogram();
+	private LatencyHistogram scanLatency = new LatencyHistogram();
+	private LatencyHistogram pinsPerOperation = new LatencyHistogram();
+	private LatencyHistogram leavesPerScan = new LatencyHistogram();
+
+	private LruShadow shadow;
+	private ObjectName name;
+
+	/**
+	 * @param buffers - size of the buffer pool, for the buffer miss estimate. Input parameter.
+	 */
+	BTreeMetrics(int buffers)
+	{
+		shadow = new LruShadow(buffers);
+	}
+
+	synchronized void inserted(long nanos, int pins)
+	{
+		inserts++;
+		insertLatency.record(nanos);
+		pinsPerOperation.record(pins);
+	}
+
+	synchronized void deleted(long nanos, int pins)
+	{
+		deletes++;
+		deleteLatency.record(nanos);
+		pinsPerOperation.record(pins);
+	}
+
+	/**
+	 * a scan done in one call: opened and closed.
+	 * @param lookup - true for a point lookup, false for a range scan. Input parameter.
+	 * @param leaves - number of leaves the scan visited. Input parameter.
+	 */
+	synchronized void scanned(boolean lookup, long nanos, int leaves)
+	{
+		opened(lookup);
+		closed(lookup, nanos, leaves);
+	}
+
+	/**
+	 * count a scan when it is opened, it may never be closed.
+	 * @param lookup - true for a point lookup, false for a range scan. Input parameter.
+	 */
+	synchronized void opened(boolean lookup)
+	{
+		if (lookup)	lookups++;
+		else	scans++;
+	}
+
+	/**
+	 * the latency and the leaves of a scan counted by opened.
+	 * @param lookup - true for a point lookup, false for a range scan. Input parameter.
+	 * @param leaves - number of leaves the scan visited. Input parameter.
+	 */
+	synchronized void closed(boolean lookup, long nanos, int leaves)
+	{
+		if (lookup)	lookupLatency.record(nanos);
+		else	scanLatency.record(nanos);
+		scanLeavesVisited += leaves;
+		leavesPerScan.record(leaves);
+	}
+
+	/**
+	 * @param level - 0 for a leaf, 1 for the index pages above the leaves and so on. Input parameter.
+	 */
+	synchronized void split(int level)
+	{
+		splits[Math.min(level, LEVELS - 1)]++;
+	}
+
+	synchronized void rootSplit()
+	{
+		rootSplits++;
+	}
+
+	/**
+	 * @return - true if the pin is estimated to be a buffer miss
+	 */
+	synchronized boolean pinned(int pid)
+	{
+		pagesPinned++;
+		boolean miss = shadow.put(pid, Boolean.TRUE) == null;
+		if (miss)	bufferMisses++;
+		return miss;
+	}
+
+	@Override
+	public synchronized long getInserts() {
+		return inserts;
+	}
+
+	@Override
+	public synchronized long getDeletes() {
+		return deletes;
+	}
+
+	@Override
+	public synchronized long getLookups() {
+		return lookups;
+	}
+
+	@Override
+	public synchronized long getScans() {
+		return scans;
+	}
+
+	@Override
+	public synchronized long getLeafSplits() {
+		return splits[0];
+	}
+
+	@Override
+	public synchronized long getIndexSplits() {
+		long indexSplits = 0;
+		for (int level = 1; level < LEVELS; level++)
+		{	indexSplits += splits[level];	}
+		return indexSplits;
+	}
+
+	@Override
+	public synchronized long getRootSplits() {
+		return rootSplits;
+	}
+
+	@Override
+	public synchronized long getPagesPinned() {
+		return pagesPinned;
+	}
+
+	@Override
+	public synchronized long getBufferMisses() {
+		return bufferMisses;
+	}
+
+	@Override
+	public synchronized long getScanLeavesVisited() {
+		return scanLeavesVisited;
+	}
+
+	@Override
+	public long getInsertP99() {
+		return insertLatency.percentile(0.99);
+	}
+
+	@Override
+	public long getDeleteP99() {
+		return deleteLatency.percentile(0.99);
+	}
+
+	@Override
+	public long getLookupP99() {
+		return lookupLatency.percentile(0.99);
+	}
+
+	@Override
+	public long getScanP99() {
+		return scanLatency.percentile(0.99);
+	}
+
+	@Override
+	public synchronized Map<String, Long> snapshot()
+	{
+		Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+		snapshot.put("inserts", inserts);
+		snapshot.put("deletes", deletes);
+		snapshot.put("lookups", lookups);
+		snapshot.put("scans", scans);
+		for (int level = 0; level < LEVELS; level++)
+		{
+			if (splits[level] > 0)	snapshot.put("splits.level" + level, splits[level]);
+		}
+		snapshot.put("rootSplits", rootSplits);
+		snapshot.put("pagesPinned", pagesPinned);
+		snapshot.put("bufferMisses", bufferMisses);
+		snapshot.put("scanLeavesVisited", scanLeavesVisited);
+		percentiles(snapshot, "insert.nanos", insertLatency);
+		percentiles(snapshot, "delete.nanos", deleteLatency);
+		percentiles(snapshot, "lookup.nanos", lookupLatency);
+		percentiles(snapshot, "scan.nanos", scanLatency);
+		percentiles(snapshot, "pinsPerOperation", pinsPerOperation);
+		percentiles(snapshot, "leavesPerScan", leavesPerScan);
+		return snapshot;
+	}
+
+	private void percentiles(Map<String, Long> snapshot, String name, LatencyHistogram histogram)
+	{
+		snapshot.put(name + ".p50", histogram.percentile(0.5));
+		snapshot.put(name + ".p99", histogram.percentile(0.99));
+		snapshot.put(name + ".p999", histogram.percentile(0.999));
+		snapshot.put(name + ".max", histogram.max());
+	}
+
+	@Override
+	public synchronized void reset()
+	{
+		inserts = deletes = lookups = scans = 0;
+		splits = new long[LEVELS];
+		rootSplits = pagesPinned = bufferMisses = scanLeavesVisited = 0;
+		insertLatency = new LatencyHistogram();
+		deleteLatency = new LatencyHistogram();
+		lookupLatency = new LatencyHistogram();
+		scanLatency = new LatencyHistogram();
+		pinsPerOperation = new LatencyHistogram();
+		leavesPerScan = new LatencyHistogram();
+	}
+
+	/**
+	 * publish the metrics in the platform MBean server as btree:type=BTreeFile,name=<fileName>
+	 * @param fileName - the name of the B+ tree file. Input parameter.
+	 */
+	public synchronized void register(String fileName) throws JMException
+	{
+		if (name != null)	return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		name = new ObjectName("btree:type=BTreeFile,name=" + ObjectName.quote(fileName));
+		server.registerMBean(this, name);
+	}
+
+	public synchronized void unregister()
+	{
+		if (name == null)	return;
+		try
+		{	ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);	}
+		catch (JMException e)
+		{	e.printStackTrace();	}
+		name = null;
+	}
+
+	/**
+	 * LRU list of page ids, as large as the buffer pool
+	 */
+	private static class LruShadow extends LinkedHashMap<Integer, Boolean>
+	{
+		private static final long serialVersionUID = 1L;
+		private int capacity;
+
+		LruShadow(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest)
+		{
+			return size() > capacity;
+		}
+	}
+}
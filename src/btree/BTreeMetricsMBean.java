@@ -0,0 +1,47 @@
+package btree;
+
+import java.util.Map;
+
+/**
+ * The JMX view of BTreeMetrics. Latencies are in nanoseconds.
+ *
+ * @author MaTrix
+ *
+ */
+public interface BTreeMetricsMBean
+{
+	long getInserts();
+
+	long getDeletes();
+
+	long getLookups();
+
+	long getScans();
+
+	long getLeafSplits();
+
+	long getIndexSplits();
+
+	long getRootSplits();
+
+	long getPagesPinned();
+
+	long getBufferMisses();
+
+	long getScanLeavesVisited();
+
+	long getInsertP99();
+
+	long getDeleteP99();
+
+	long getLookupP99();
+
+	long getScanP99();
+
+	/**
+	 * all the counters and percentiles by name
+	 */
+	Map<String, Long> snapshot();
+
+	void reset();
+}
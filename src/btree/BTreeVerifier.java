@@ -0,0 +1,324 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.HFPage;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * BTreeVerifier checks the structure of a B+ tree:
+ * - the keys are in order inside every page and from one leaf to the next,
+ * - every key is between the separators of the index records above its page,
+ * - the next and prev links of the leaves follow the order of the leaves
+ *   under the index pages,
+ * - all the leaves are at the same depth,
+ * - between two operations the tree holds no pins but the leaves of its open
+ *   scans.
+ *
+ * verify() checks the whole tree at once. verifyStep checks it in slices of
+ * pages, in key order, pinning one page at a time and none between two calls,
+ * so a busy service can run a pass in the pauses between its operations. If
+ * the tree changes between two slices, the next slice goes down from the root
+ * again to the last key checked; the leaf links and the depths on both sides
+ * of that point are then not compared with each other.
+ *
+ * @author MaTrix
+ *
+ */
+public class BTreeVerifier implements GlobalConst
+{
+	private BTreeFile btree;
+	private int keyType;
+
+	// the subtrees left to check, the next one on top
+	private Deque<Node> pending = new ArrayDeque<Node>();
+	private List<String> problems = new ArrayList<String>();
+	private boolean passing; // a pass is in progress
+	private int modifications; // of the tree at the end of the last slice
+	private int pagesChecked;
+
+	private boolean leafSeen; // a leaf was checked in this pass
+	private int leafDepth; // -1 until a leaf is checked
+	private PageId lastLeaf; // the last leaf checked, null after the tree changed
+	private PageId lastNext; // next link of the last leaf
+	private KeyClass lastKey; // the largest key checked
+
+	/**
+	 * a page to check, with the separators around it
+	 */
+	private static class Node
+	{
+		PageId pageId;
+		KeyClass low; // null if there is no separator on the left
+		KeyClass high; // null if there is no separator on the right
+		int depth;
+
+		Node(PageId pageId, KeyClass low, KeyClass high, int depth)
+		{
+			this.pageId = pageId;
+			this.low = low;
+			this.high = high;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * @param btree - the tree to check, open. Input parameter.
+	 */
+	public BTreeVerifier(BTreeFile btree)
+	{
+		this.btree = btree;
+		this.keyType = btree.getHeaderPage().get_keyType();
+	}
+
+	/**
+	 * check the whole tree
+	 * @return - the problems found, empty if the tree is sound
+	 */
+	public List<String> verify()
+	{
+		passing = false;
+		while (!verifyStep(Integer.MAX_VALUE));
+		return getProblems();
+	}
+
+	/**
+	 * check the next pages of the current pass, starting a pass if there is none.
+	 * Must not be called in the middle of an operation.
+	 * @param pages - how many pages to check at most. Input parameter.
+	 * @return - true if the pass is complete, its problems are then in getProblems
+	 */
+	public boolean verifyStep(int pages)
+	{
+		if (btree.getHeaderPage() == null)
+		{
+			problems.add("the file is closed");
+			passing = false;
+			return true;
+		}
+		try
+		{
+			if (!passing)	start();
+			else if (btree.getModifications() != modifications)	resume();
+			for (int i = 0; i < pages && !pending.isEmpty(); i++)
+			{	check(pending.pop());	}
+			modifications = btree.getModifications();
+			if (!pending.isEmpty())	return false;
+			finish();
+		}
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e)
+		{
+			e.printStackTrace();
+			problems.add("the pass stopped: " + e);
+		}
+		passing = false;
+		return true;
+	}
+
+	/**
+	 * @return - the problems found by the current pass, or the last one if it is complete
+	 */
+	public List<String> getProblems()
+	{
+		return new ArrayList<String>(problems);
+	}
+
+	/**
+	 * @return - number of pages checked by the current pass
+	 */
+	public int getPagesChecked()
+	{
+		return pagesChecked;
+	}
+
+	private void start()
+	{
+		problems.clear();
+		pending.clear();
+		pagesChecked = 0;
+		leafSeen = false;
+		leafDepth = -1;
+		lastLeaf = null;
+		lastKey = null;
+		pending.push(new Node(btree.getHeaderPage().get_rootId(), null, null, 0));
+		modifications = btree.getModifications();
+		passing = true;
+	}
+
+	/**
+	 * the tree changed since the last slice: go down from the root again to the
+	 * last key checked, the subtrees on the right of the path are left to check.
+	 */
+	private void resume() throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		pending.clear();
+		leafDepth = -1;
+		lastLeaf = null;
+		Node node = new Node(btree.getHeaderPage().get_rootId(), null, null, 0);
+		while (true)
+		{
+			PageId pageId = node.pageId;
+			HFPage page = new HFPage();
+			btree.pinPageForScan(pageId, page);
+			try
+			{
+				if (page.getType() != NodeType.INDEX)
+				{
+					pending.push(node);
+					break;
+				}
+				List<Node> children = children(node, new BTIndexPage(page, keyType));
+				// the child getPageNoByKey would take for the first duplicate of the key
+				int chosen = 0;
+				while (lastKey != null && chosen + 1 < children.size()
+						&& BT.keyCompare(children.get(chosen + 1).low, lastKey) < 0)
+				{	chosen++;	}
+				for (int i = children.size() - 1; i > chosen; i--)
+				{	pending.push(children.get(i));	}
+				node = children.get(chosen);
+			}
+			finally
+			{	btree.unpinPage(pageId, false);	}
+		}
+		// the keys before the last one may be met again in its leaf
+		lastKey = null;
+	}
+
+	private void check(Node node) throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		HFPage page = new HFPage();
+		btree.pinPageForScan(node.pageId, page);
+		try
+		{
+			pagesChecked++;
+			if (page.getCurPage().pid != node.pageId.pid)
+				problem(node, "says it is page " + page.getCurPage().pid);
+			if (page.getType() == NodeType.INDEX)
+			{
+				List<Node> children = children(node, new BTIndexPage(page, keyType));
+				for (int i = children.size() - 1; i >= 0; i--)
+				{	pending.push(children.get(i));	}
+			}
+			else if (page.getType() == NodeType.LEAF)	checkLeaf(node, new BTLeafPage(page, keyType));
+			else problem(node, "has the type " + page.getType() + " instead of an index or leaf page");
+		}
+		finally
+		{	btree.unpinPage(node.pageId, false);	}
+	}
+
+	/**
+	 * check the keys of an index page
+	 * @return - the children of the page, from left to right
+	 */
+	private List<Node> children(Node node, BTIndexPage indexPage) throws IOException, KeyNotMatchException
+	{
+		List<Node> children = new ArrayList<Node>();
+		KeyClass low = node.low;
+		PageId child = indexPage.getLeftLink();
+		RID iteratorRecord = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(iteratorRecord); entry != null;
+				entry = indexPage.getNext(iteratorRecord))
+		{
+			checkKey(node, low, entry.key);
+			children.add(new Node(child, low, entry.key, node.depth + 1));
+			low = entry.key;
+			child = ((IndexData) entry.data).getData();
+		}
+		children.add(new Node(child, low, node.high, node.depth + 1));
+		return children;
+	}
+
+	private void checkLeaf(Node node, BTLeafPage leafPage) throws IOException, KeyNotMatchException
+	{
+		if (leafDepth < 0)	leafDepth = node.depth;
+		else if (node.depth != leafDepth)
+			problem(node, "is a leaf at depth " + node.depth + ", the others are at depth " + leafDepth);
+
+		PageId prev = leafPage.getPrevPage();
+		if (lastLeaf != null)
+		{
+			if (lastNext.pid != node.pageId.pid)
+				problem(node, "follows leaf " + lastLeaf.pid + " whose next link is " + lastNext.pid);
+			if (prev.pid != lastLeaf.pid)
+				problem(node, "follows leaf " + lastLeaf.pid + " but its prev link is " + prev.pid);
+		}
+		else if (!leafSeen && prev.pid != INVALID_PAGE)
+			problem(node, "is the first leaf but its prev link is " + prev.pid);
+
+		KeyClass previous = lastKey;
+		RID iteratorRecord = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(iteratorRecord); entry != null;
+				entry = leafPage.getNext(iteratorRecord))
+		{
+			checkKey(node, previous, entry.key);
+			previous = entry.key;
+		}
+		lastKey = previous;
+		leafSeen = true;
+		lastLeaf = node.pageId;
+		lastNext = leafPage.getNextPage();
+	}
+
+	/**
+	 * @param previous - the key before it in key order, null if there is none. Input parameter.
+	 */
+	private void checkKey(Node node, KeyClass previous, KeyClass key) throws KeyNotMatchException
+	{
+		if (previous != null && BT.keyCompare(previous, key) > 0)
+			problem(node, "has the key " + key + " after the key " + previous);
+		// equal keys may be on both sides of a separator
+		if ((node.low != null && BT.keyCompare(key, node.low) < 0)
+				|| (node.high != null && BT.keyCompare(key, node.high) > 0))
+			problem(node, "has the key " + key + " outside its separators " + node.low + " and " + node.high);
+	}
+
+	/**
+	 * the checks at the end of a pass
+	 */
+	private void finish()
+	{
+		if (lastLeaf != null && lastNext.pid != INVALID_PAGE)
+			problems.add("page " + lastLeaf.pid + ": is the last leaf but its next link is " + lastNext.pid);
+
+		// every pin the tree holds must belong to an open scan
+		Map<Integer, Integer> pins = btree.leakedPins();
+		for (Map.Entry<Integer, Integer> entry : pins.entrySet())
+		{
+			if (entry.getValue() > 0)
+				problems.add("page " + entry.getKey() + ": " + entry.getValue() + " pin(s) taken by the tree were not released");
+			else if (entry.getValue() < 0)
+				problems.add("page " + entry.getKey() + ": unpinned " + (-entry.getValue()) + " time(s) more than pinned");
+		}
+	}
+
+	private void problem(Node node, String problem)
+	{
+		problems.add("page " + node.pageId.pid + ": " + problem);
+	}
+}
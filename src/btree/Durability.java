@@ -0,0 +1,36 @@
+package btree;
+
+/**
+ * The durability modes a B+ tree can be opened with. They decide when the
+ * log records of a finished insert or delete are forced to the disk (see BTLog),
+ * and so how many of the last operations a crash of the machine can lose.
+ * The mode is chosen when the file is opened, it is not kept in the header page.
+ *
+ * @author MaTrix
+ *
+ */
+public class Durability
+{
+	/** every operation forces the log before it returns, nothing is lost */
+	public static final short SYNC = 0;
+
+	/**
+	 * finished operations are forced together, by a flusher thread every given
+	 * number of milliseconds or as soon as the given number of operations is
+	 * waiting. A crash loses at most the operations of the last group.
+	 */
+	public static final short GROUP_COMMIT = 1;
+
+	/**
+	 * the log is handed to the operating system after every operation but only
+	 * forced at checkpoints, on close and when the changed pages waiting for it
+	 * reach a quarter of the buffer pool. Those pages stay pinned until then, so
+	 * no page reaches the disk before its log records: a crash of the process
+	 * loses nothing, a crash of the machine loses the operations since the last
+	 * force but leaves a tree that recovery brings back.
+	 */
+	public static final short ASYNC = 2;
+
+	public static final int DEFAULT_GROUP_MILLIS = 5;
+	public static final int DEFAULT_GROUP_RECORDS = 64;
+}
@@ -0,0 +1,171 @@
+package btree;
+
+import global.RID;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * IndexJoin is an index nested-loop join of outer rows with the entries of a
+ * BTreeFile: every outer row is matched with the record ids of the entries
+ * that have its key. The outer rows are read in batches that are sorted by
+ * key and probed with one cursor for the whole join, so consecutive probes
+ * move forward from the leaf the last one stopped at, instead of a new scan
+ * and descent per row. An outer input already sorted by key needs a single
+ * pass over the leaves.
+ *
+ * The matches are given to the output in key order within a batch while the
+ * cursor keeps a leaf pinned: the output must not change the inner tree.
+ *
+ * @param <T> - the type of the outer rows
+ *
+ * @author MaTrix
+ *
+ */
+public class IndexJoin<T>
+{
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private BTreeFile inner;
+	private Function<? super T, KeyClass> key;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * an outer row with its key
+	 */
+	private static class Row<T>
+	{
+		T row;
+		KeyClass key;
+
+		Row(T row, KeyClass key)
+		{
+			this.row = row;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * @param inner - the index probed, open. Input parameter.
+	 * @param key - the join key of an outer row, null to match nothing. Input parameter.
+	 */
+	public IndexJoin(BTreeFile inner, Function<? super T, KeyClass> key)
+	{
+		this.inner = inner;
+		this.key = key;
+	}
+
+	/**
+	 * @param rows - outer rows sorted together, 1 to probe in the outer order. Input parameter.
+	 * @return - this join
+	 */
+	public IndexJoin<T> setBatchSize(int rows)
+	{
+		batchSize = Math.max(1, rows);
+		return this;
+	}
+
+	/**
+	 * @see #join(Iterator, BiConsumer)
+	 */
+	public long join(Stream<? extends T> outer, BiConsumer<? super T, RID> output)
+	{
+		return join(outer.iterator(), output);
+	}
+
+	/**
+	 * run the join
+	 * @param outer - the outer rows. Input parameter.
+	 * @param output - receives every outer row with the record id of each matching entry. Input parameter.
+	 * @return - number of matches
+	 */
+	public long join(Iterator<? extends T> outer, BiConsumer<? super T, RID> output)
+	{
+		if (inner.getHeaderPage() == null)	return 0;
+		long start = System.nanoTime();
+		long matches = 0;
+		BTCursor cursor = new BTCursor(inner);
+		try
+		{
+			List<Row<T>> batch = new ArrayList<Row<T>>();
+			while (outer.hasNext())
+			{
+				batch.clear();
+				while (outer.hasNext() && batch.size() < batchSize)
+				{
+					T row = outer.next();
+					KeyClass rowKey = key.apply(row);
+					// a key of another type cannot match
+					if (rowKey != null && inner.keyMatches(rowKey))	batch.add(new Row<T>(row, rowKey));
+				}
+				matches += probe(cursor, batch, output);
+			}
+		}
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e)
+		{	e.printStackTrace();	}
+		finally
+		{
+			cursor.close();
+			inner.getMetrics().scanned(true, System.nanoTime() - start, cursor.getLeavesVisited());
+		}
+		return matches;
+	}
+
+	/**
+	 * probe the index with a batch in key order
+	 * @return - number of matches
+	 */
+	private long probe(BTCursor cursor, List<Row<T>> batch, BiConsumer<? super T, RID> output)
+			throws ReplacerException, HashOperationException, PageUnpinnedException,
+			InvalidFrameNumberException, PageNotReadException, BufferPoolExceededException,
+			PagePinnedException, BufMgrException, IOException, HashEntryNotFoundException,
+			KeyNotMatchException
+	{
+		Collections.sort(batch, new Comparator<Row<T>>() {
+			@Override
+			public int compare(Row<T> a, Row<T> b) {
+				try {
+					return BT.keyCompare(a.key, b.key);
+				} catch (KeyNotMatchException e) {
+					return 0;
+				}
+			}
+		});
+		long matches = 0;
+		KeyClass previous = null;
+		List<RID> rids = null;
+		for (Row<T> row : batch)
+		{
+			// the outer rows with the same key share the entries
+			if (previous == null || BT.keyCompare(previous, row.key) != 0)
+			{
+				rids = cursor.find(row.key);
+				previous = row.key;
+			}
+			for (RID rid : rids)
+			{	output.accept(row.row, rid);	}
+			matches += rids.size();
+		}
+		return matches;
+	}
+}
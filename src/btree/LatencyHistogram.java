@@ -0,0 +1,82 @@
+package btree;
+
+/**
+ * Histogram of latencies in nanoseconds (or of any other non-negative count)
+ * with a bounded relative error: every power of two is split in SUB_BUCKETS
+ * buckets, so a percentile is reported at most 1/SUB_BUCKETS (about 6%) above
+ * the real value. The methods are synchronized so another thread can read a
+ * histogram while it is recorded, e.g. through JMX.
+ *
+ * @author MaTrix
+ *
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	private long[] counts = new long[64 * SUB_BUCKETS];
+	private long total;
+	private long max;
+
+	public synchronized void record(long nanos)
+	{
+		if (nanos < 0)	nanos = 0;
+		counts[bucket(nanos)]++;
+		total++;
+		max = Math.max(max, nanos);
+	}
+
+	/**
+	 * add the values of another histogram to this one
+	 */
+	public synchronized void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < counts.length; i++)
+		{	counts[i] += other.counts[i];	}
+		total += other.total;
+		max = Math.max(max, other.max);
+	}
+
+	public synchronized long count()
+	{
+		return total;
+	}
+
+	public synchronized long max()
+	{
+		return max;
+	}
+
+	/**
+	 * @param fraction - e.g. 0.99 for the 99th percentile. Input parameter.
+	 * @return - the upper bound of the bucket holding the percentile, 0 if empty
+	 */
+	public synchronized long percentile(double fraction)
+	{
+		long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank && seen > 0)	return Math.min(max, upperBound(i));
+		}
+		return 0;
+	}
+
+	private static int bucket(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)	return (int) nanos;
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS)	return bucket;
+		int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+		long sub = bucket % SUB_BUCKETS;
+		return ((SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+}
@@ -0,0 +1,159 @@
+package btree;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import global.SystemDefs;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import bufmgr.BufMgrException;
+import bufmgr.HashOperationException;
+import bufmgr.PageNotFoundException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+
+/**
+ * MappedPageStore reads the pages of a B+ tree straight from the database
+ * file mapped in memory, without pinning them in the buffer manager and
+ * without copying them into Page objects. It is meant for read-mostly trees
+ * that fit in memory: the pages a write changes are flushed from the buffer
+ * pool before the next lookup, so lookups always see the committed tree.
+ *
+ * Page i of the database is at offset i * MINIBASE_PAGESIZE of the file and
+ * is read in place through BTPageView.
+ *
+ * @author MaTrix
+ *
+ */
+public class MappedPageStore implements GlobalConst
+{
+	private BTreeFile btree;
+	private RandomAccessFile file;
+	private MappedByteBuffer buffer;
+	private int keyType;
+
+	// pages changed in the buffer pool and not flushed yet
+	private Set<Integer> stale = new HashSet<Integer>();
+
+	MappedPageStore(BTreeFile btree) throws IOException, HashOperationException, PageUnpinnedException,
+			PageNotFoundException, BufMgrException
+	{
+		this.btree = btree;
+		this.keyType = btree.getHeaderPage().get_keyType();
+		// the pages changed before the store existed may only be in the buffer
+		// pool: the log first, then every dirty page goes to the file
+		btree.forceLog();
+		try
+		{	SystemDefs.JavabaseBM.flushAllPages();	}
+		catch (PagePinnedException e)
+		{	/* the pinned pages are written too, the exception only reports them */	}
+		file = new RandomAccessFile(SystemDefs.JavabaseDBName, "r");
+		map();
+	}
+
+	private void map() throws IOException
+	{
+		buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+	}
+
+	/**
+	 * called by the tree when a page is unpinned dirty
+	 */
+	void changed(PageId pageId)
+	{
+		stale.add(pageId.pid);
+	}
+
+	/**
+	 * write the changed pages to the file so the mapping sees them
+	 */
+	private void sync() throws IOException, HashOperationException, PageUnpinnedException,
+			PagePinnedException, BufMgrException
+	{
+		// the log records of the pages must be on the disk before the pages
+		btree.forceLog();
+		for (int pid : stale)
+		{
+			try
+			{	SystemDefs.JavabaseBM.flushPage(new PageId(pid));	}
+			catch (PageNotFoundException e)
+			{	/* no longer in the buffer pool, so already written */	}
+		}
+		stale.clear();
+		if (file.length() > buffer.capacity())	map();
+	}
+
+	/**
+	 * the record ids of all the entries with the given key
+	 * @param key - the key to look for. Input parameter.
+	 * @return - the record ids, an empty array if the key is not in the tree
+	 */
+	public RID[] lookup(KeyClass key) throws IOException, HashOperationException, PageUnpinnedException,
+			PagePinnedException, BufMgrException, KeyNotMatchException
+	{
+		long start = System.nanoTime();
+		if (!stale.isEmpty())	sync();
+		List<RID> rids = new ArrayList<RID>();
+		int leaves = 1;
+
+		BTPageView page = view(btree.getHeaderPage().get_rootId().pid);
+		while (page.getType() == NodeType.INDEX)
+		{
+			// the last record with a key < key, the left link if there is none: 
+			// the first duplicate of the key may be left of an equal separator
+			int slot = page.search(key, false) - 1;
+			page.moveTo(base(slot < 0 ? page.getPrevPage() : page.getChild(slot)));
+		}
+
+		// the first record with a key >= key, the duplicates may go on in the next leaves
+		int slot = page.search(key, false);
+		boolean done = false;
+		while (!done)
+		{
+			for (; slot < page.getSlotCnt() && !done; slot++)
+			{
+				done = page.compareKey(slot, key) != 0;
+				if (!done)	rids.add(page.getRid(slot));
+			}
+			if (!done && page.getNextPage() != INVALID_PAGE)
+			{
+				page.moveTo(base(page.getNextPage()));
+				leaves++;
+				slot = 0;
+			}
+			else done = true;
+		}
+		btree.getMetrics().scanned(true, System.nanoTime() - start, leaves);
+		return rids.toArray(new RID[rids.size()]);
+	}
+
+	private BTPageView view(int pid)
+	{
+		return new BTPageView(buffer, base(pid), keyType);
+	}
+
+	private int base(int pid)
+	{
+		return pid * MINIBASE_PAGESIZE;
+	}
+
+	/**
+	 * unmap the file, the tree stops reporting its changes
+	 */
+	public void close()
+	{
+		btree.unmap(this);
+		try
+		{	file.close();	}
+		catch (IOException e)
+		{	e.printStackTrace();	}
+	}
+}
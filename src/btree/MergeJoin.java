@@ -0,0 +1,123 @@
+package btree;
+
+import global.AttrType;
+import global.RID;
+
+import java.io.IOException;
+import java.util.List;
+
+import bufmgr.BufMgrException;
+import bufmgr.BufferPoolExceededException;
+import bufmgr.HashEntryNotFoundException;
+import bufmgr.HashOperationException;
+import bufmgr.InvalidFrameNumberException;
+import bufmgr.PageNotReadException;
+import bufmgr.PagePinnedException;
+import bufmgr.PageUnpinnedException;
+import bufmgr.ReplacerException;
+
+/**
+ * MergeJoin joins two BTreeFiles with the same key type on their keys, e.g.
+ * to intersect two secondary indexes. A cursor on the leaf chain of each
+ * tree is moved forward in turn: the one behind seeks the key of the other.
+ * A seek walks the leaves for a short gap and goes down from the root for
+ * a long one (see BTCursor), so the work grows with the matches and the
+ * number of gaps skipped, not with the sizes of the two indexes.
+ *
+ * Both cursors keep a leaf pinned while the output runs: the output must
+ * not change the trees.
+ *
+ * @author MaTrix
+ *
+ */
+public class MergeJoin
+{
+	/**
+	 * receives the matches of the join
+	 */
+	public interface Output
+	{
+		/**
+		 * @param key - the key of both entries. Input parameter.
+		 * @param left - record id of the entry of the left tree. Input parameter.
+		 * @param right - record id of the entry of the right tree. Input parameter.
+		 */
+		void match(KeyClass key, RID left, RID right);
+	}
+
+	private BTreeFile left;
+	private BTreeFile right;
+	private boolean integers; // compare the keys as ints, without BT.keyCompare
+
+	/**
+	 * @param left - first tree, open. Input parameter.
+	 * @param right - second tree, open, with the key type of the first. Input parameter.
+	 */
+	public MergeJoin(BTreeFile left, BTreeFile right)
+	{
+		short keyType = left.getHeaderPage().get_keyType();
+		if (keyType != right.getHeaderPage().get_keyType())
+			throw new IllegalArgumentException("the trees have different key types");
+		this.left = left;
+		this.right = right;
+		this.integers = keyType == AttrType.attrInteger;
+	}
+
+	/**
+	 * run the join
+	 * @param output - receives every pair of entries with the same key. Input parameter.
+	 * @return - number of matches
+	 */
+	public long join(Output output)
+	{
+		long start = System.nanoTime();
+		long matches = 0;
+		BTCursor leftCursor = new BTCursor(left);
+		BTCursor rightCursor = new BTCursor(right);
+		try
+		{
+			KeyDataEntry a = leftCursor.first();
+			KeyDataEntry b = rightCursor.first();
+			while (a != null && b != null)
+			{
+				int compare = compare(a.key, b.key);
+				if (compare < 0)	a = leftCursor.seek(b.key);
+				else if (compare > 0)	b = rightCursor.seek(a.key);
+				else
+				{
+					KeyClass key = a.key;
+					List<RID> leftRids = leftCursor.find(key);
+					List<RID> rightRids = rightCursor.find(key);
+					for (RID leftRid : leftRids)
+					{
+						for (RID rightRid : rightRids)
+						{	output.match(key, leftRid, rightRid);	}
+					}
+					matches += (long) leftRids.size() * rightRids.size();
+					a = leftCursor.current();
+					b = rightCursor.current();
+				}
+			}
+		}
+		catch (ReplacerException | HashOperationException | PageUnpinnedException
+				| InvalidFrameNumberException | PageNotReadException | BufferPoolExceededException
+				| PagePinnedException | BufMgrException | IOException | HashEntryNotFoundException
+				| KeyNotMatchException e)
+		{	e.printStackTrace();	}
+		finally
+		{
+			leftCursor.close();
+			rightCursor.close();
+			long nanos = System.nanoTime() - start;
+			left.getMetrics().scanned(false, nanos, leftCursor.getLeavesVisited());
+			right.getMetrics().scanned(false, nanos, rightCursor.getLeavesVisited());
+		}
+		return matches;
+	}
+
+	private int compare(KeyClass a, KeyClass b) throws KeyNotMatchException
+	{
+		if (integers)	return Integer.compare(((IntegerKey) a).getKey(), ((IntegerKey) b).getKey());
+		return BT.keyCompare(a, b);
+	}
+}
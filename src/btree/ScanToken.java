@@ -0,0 +1,182 @@
+package btree;
+
+import global.PageId;
+import global.RID;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Base64;
+
+/**
+ * ScanToken is the position of a BTFileScan after the last entry it returned,
+ * taken by BTFileScan.token and given to BTreeFile.resume_scan to go on with
+ * the range in a later scan. It holds no pin and no page id the tree could
+ * free in between: only the bounds of the range, the last key and record id
+ * returned and how many entries with that key were returned. A resumed scan
+ * goes down from the root to the last key and starts after the entry with
+ * the last record id, or after as many duplicates if that entry is gone.
+ *
+ * A token can be kept as a string (encode / decode), e.g. in the page links
+ * of a stateless server.
+ *
+ * @author MaTrix
+ *
+ */
+public final class ScanToken implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	// the tags of the encoded keys
+	private static final byte NO_KEY = 0;
+	private static final byte INTEGER_KEY = 1;
+	private static final byte STRING_KEY = 2;
+
+	// the keys as Integer or String, null for none; KeyClass is not serializable
+	private Object low;
+	private Object high;
+	private Object last; // null if the scan returned nothing yet
+	private int lastPage;
+	private int lastSlot;
+	private int duplicates; // entries with the last key returned
+	private boolean end; // the scan returned all its entries
+
+	ScanToken(KeyClass low, KeyClass high, KeyClass last, RID lastRid, int duplicates, boolean end)
+	{
+		this.low = value(low);
+		this.high = value(high);
+		this.last = value(last);
+		if (lastRid != null)
+		{
+			this.lastPage = lastRid.pageNo.pid;
+			this.lastSlot = lastRid.slotNo;
+		}
+		this.duplicates = duplicates;
+		this.end = end;
+	}
+
+	private ScanToken()
+	{
+	}
+
+	private static Object value(KeyClass key)
+	{
+		if (key instanceof IntegerKey)	return ((IntegerKey) key).getKey();
+		if (key instanceof StringKey)	return ((StringKey) key).getKey();
+		return null;
+	}
+
+	private static KeyClass key(Object value)
+	{
+		if (value instanceof Integer)	return new IntegerKey((Integer) value);
+		if (value instanceof String)	return new StringKey((String) value);
+		return null;
+	}
+
+	KeyClass getLowKey()
+	{
+		return key(low);
+	}
+
+	KeyClass getHighKey()
+	{
+		return key(high);
+	}
+
+	/**
+	 * @return - the last key returned, null if the scan returned nothing yet
+	 */
+	KeyClass getLastKey()
+	{
+		return key(last);
+	}
+
+	RID getLastRid()
+	{
+		return new RID(new PageId(lastPage), lastSlot);
+	}
+
+	int getDuplicates()
+	{
+		return duplicates;
+	}
+
+	boolean isEnd()
+	{
+		return end;
+	}
+
+	/**
+	 * @return - the token as a URL safe string
+	 */
+	public String encode()
+	{
+		try
+		{
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			writeKey(out, low);
+			writeKey(out, high);
+			writeKey(out, last);
+			out.writeInt(lastPage);
+			out.writeInt(lastSlot);
+			out.writeInt(duplicates);
+			out.writeBoolean(end);
+			out.close();
+			return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+		}
+		catch (IOException e)
+		{	throw new IllegalStateException(e);	}
+	}
+
+	/**
+	 * @param token - a string made by encode. Input parameter.
+	 * @return - the token
+	 * @throws IllegalArgumentException - if the string is not a token
+	 */
+	public static ScanToken decode(String token)
+	{
+		try
+		{
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+			ScanToken decoded = new ScanToken();
+			decoded.low = readKey(in);
+			decoded.high = readKey(in);
+			decoded.last = readKey(in);
+			decoded.lastPage = in.readInt();
+			decoded.lastSlot = in.readInt();
+			decoded.duplicates = in.readInt();
+			decoded.end = in.readBoolean();
+			return decoded;
+		}
+		catch (IOException e)
+		{	throw new IllegalArgumentException("not a scan token", e);	}
+	}
+
+	private static void writeKey(DataOutputStream out, Object key) throws IOException
+	{
+		if (key instanceof Integer)
+		{
+			out.writeByte(INTEGER_KEY);
+			out.writeInt((Integer) key);
+		}
+		else if (key instanceof String)
+		{
+			out.writeByte(STRING_KEY);
+			out.writeUTF((String) key);
+		}
+		else out.writeByte(NO_KEY);
+	}
+
+	private static Object readKey(DataInputStream in) throws IOException
+	{
+		byte tag = in.readByte();
+		if (tag == INTEGER_KEY)	return in.readInt();
+		if (tag == STRING_KEY)	return in.readUTF();
+		if (tag != NO_KEY)	throw new IOException("bad key tag " + tag);
+		return null;
+	}
+}
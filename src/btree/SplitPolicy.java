@@ -0,0 +1,84 @@
+package btree;
+
+/**
+ * The policies a B+ tree can use to choose the split point of a full page.
+ * The policy of a tree is recorded in its header page together with the
+ * fill factor (see BTreeHeaderPage.getSplitPolicy and getFillFactor).
+ * The policies choose the split point of the leaves; index pages are
+ * always split in the middle.
+ *
+ * @author MaTrix
+ *
+ */
+public class SplitPolicy
+{
+	/** the old page keeps fill factor percent of the records */
+	public static final short FIXED_FILL = 0;
+
+	/**
+	 * like FIXED_FILL, but a key that lands after the last (before the first)
+	 * record of the page leaves the old (new) page almost full, so ascending
+	 * or descending inserts pack the pages instead of leaving them half full.
+	 */
+	public static final short SKEW_AWARE = 1;
+
+	/**
+	 * for StringKey trees only: around the fill factor, split the leaf where
+	 * the separator copied up to the parent is the shortest, and copy up
+	 * only the prefix of the key needed to tell the two pages apart.
+	 * IntegerKey trees fall back to FIXED_FILL.
+	 */
+	public static final short SHORTEST_SEPARATOR = 2;
+
+	public static final int DEFAULT_FILL_FACTOR = 50;
+
+	/**
+	 * number of records that stay in the old page when a full page is split.
+	 * @param policy - the split policy of the tree. Input parameter.
+	 * @param fillFactor - the fill factor of the tree. Input parameter.
+	 * @param numberOfRecords - number of records in the full page. Input parameter.
+	 * @param insertPosition - number of records whose key is smaller than the
+	 * 						   inserted key. Input parameter.
+	 * @return - the split point, always leaving a record in each page.
+	 */
+	static int splitPoint(short policy, int fillFactor, int numberOfRecords, int insertPosition)
+	{
+		int splitPoint = numberOfRecords * fillFactor / 100;
+		if (policy == SKEW_AWARE)
+		{
+			// appending at the right end
+			if (insertPosition >= numberOfRecords)
+				splitPoint = numberOfRecords - 1;
+			// prepending at the left end
+			else if (insertPosition == 0)
+				splitPoint = 1;
+		}
+		return clamp(splitPoint, numberOfRecords);
+	}
+
+	/**
+	 * keep at least one record in each of the two pages
+	 */
+	static int clamp(int splitPoint, int numberOfRecords)
+	{
+		if (splitPoint < 1)	return 1;
+		if (splitPoint > numberOfRecords - 1) return numberOfRecords - 1;
+		return splitPoint;
+	}
+
+	/**
+	 * the shortest prefix of right which is still greater than left.
+	 * @param left - the last key of the left page. Input parameter.
+	 * @param right - the first key of the right page. Input parameter.
+	 * @return - a separator s such that left < s <= right (s = right if the two keys are equal).
+	 */
+	static String shortestSeparator(String left, String right)
+	{
+		int common = 0;
+		while (common < left.length() && common < right.length()
+				&& left.charAt(common) == right.charAt(common))
+		{	common++;	}
+		if (common >= right.length())	return right;
+		return right.substring(0, common + 1);
+	}
+}
@@ -0,0 +1,300 @@
+package tests;
+
+import global.AttrType;
+import global.PageId;
+import global.RID;
+import global.SystemDefs;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import btree.BTFileScan;
+import btree.BTreeFile;
+import btree.IntegerKey;
+import btree.KeyClass;
+import btree.ScanToken;
+import btree.SplitPolicy;
+import btree.StringKey;
+
+/**
+ * Headless benchmark of the BTreeFile operations, to compare builds and to
+ * size machines. Every workload runs on a new database for each combination
+ * of key type, key size and buffer pool size, with a fixed seed, so two runs
+ * on the same machine do the same work. Each workload is run WARMUP times
+ * and then ROUNDS times measured; the result is printed as one CSV line:
+ *
+ * workload,keyType,keySize,buffers,entries,mean ns/op,stddev ns/op,ops/s
+ *
+ * usage: BTBenchmark [entries] [workload name filter]
+ *
+ * @author MaTrix
+ *
+ */
+public class BTBenchmark
+{
+	private static final int WARMUP = 2;
+	private static final int ROUNDS = 5;
+	private static final long SEED = 20140501L;
+
+	private static final int[] BUFFERS = { 50, 500, 5000 };
+	private static final int[] STRING_KEY_SIZES = { 8, 32, 128 };
+	private static final int DB_PAGES = 50000;
+	private static final double ZIPF_SKEW = 0.99;
+
+	private static final String[] WORKLOADS = { "insert-sequential", "insert-random", "insert-zipf",
+		"insert-split-heavy", "lookup", "lookup-batch", "scan-short", "scan-long", "scan-paged", "delete" };
+	private static final int LOOKUP_BATCH = 1000;
+	private static final int PAGE_SIZE = 100;
+
+	private int entries;
+	private int keyType;
+	private int keySize;
+	private int buffers;
+	private String dbpath;
+	private int fileNumber;
+
+	public static void main(String[] args)
+	{
+		int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+		String filter = (args.length > 1) ? args[1] : "";
+		System.out.println("workload,keyType,keySize,buffers,entries,mean ns/op,stddev ns/op,ops/s");
+		for (int buffers : BUFFERS)
+		{
+			new BTBenchmark(AttrType.attrInteger, 4, buffers, entries).run(filter);
+			for (int keySize : STRING_KEY_SIZES)
+			{	new BTBenchmark(AttrType.attrString, keySize, buffers, entries).run(filter);	}
+		}
+	}
+
+	BTBenchmark(int keyType, int keySize, int buffers, int entries)
+	{
+		this.keyType = keyType;
+		this.keySize = keySize;
+		this.buffers = buffers;
+		this.entries = entries;
+	}
+
+	void run(String filter)
+	{
+		dbpath = new File(System.getProperty("java.io.tmpdir"), "btbench" + buffers + ".minibase-db").getPath();
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, DB_PAGES, buffers, "Clock");
+		for (String workload : WORKLOADS)
+		{
+			if (!workload.contains(filter))	continue;
+			double[] nanosPerOp = new double[ROUNDS];
+			for (int round = -WARMUP; round < ROUNDS; round++)
+			{
+				double result = measure(workload);
+				if (round >= 0)	nanosPerOp[round] = result;
+			}
+			report(workload, nanosPerOp);
+		}
+		new File(dbpath).delete();
+	}
+
+	/**
+	 * run the workload once on a new file
+	 * @return - nanoseconds per operation of the timed part
+	 */
+	private double measure(String workload)
+	{
+		Random random = new Random(SEED);
+		BTreeFile file = new BTreeFile("BENCH" + (fileNumber++), keyType, keySize + 2, 1);
+		int[] keys = keys(workload, random);
+		long start = 0;
+		int operations = entries;
+
+		if (workload.startsWith("insert"))
+		{
+			if (workload.equals("insert-split-heavy"))	file.setSplitPolicy(SplitPolicy.FIXED_FILL, 10);
+			start = System.nanoTime();
+			insertAll(file, keys);
+		}
+		else
+		{
+			insertAll(file, keys);
+			int[] order = keys.clone();
+			shuffle(order, random);
+			if (workload.equals("lookup"))
+			{
+				start = System.nanoTime();
+				// one key per multi-get: a descent from the root to the leaf of the key
+				for (int k : order)
+				{	file.lookup(new KeyClass[] { key(k) });	}
+			}
+			else if (workload.equals("lookup-batch"))
+			{
+				// the same lookups as lookup, LOOKUP_BATCH keys per multi-get
+				start = System.nanoTime();
+				for (int from = 0; from < order.length; from += LOOKUP_BATCH)
+				{
+					KeyClass[] batch = new KeyClass[Math.min(LOOKUP_BATCH, order.length - from)];
+					for (int i = 0; i < batch.length; i++)
+					{	batch[i] = key(order[from + i]);	}
+					file.lookup(batch);
+				}
+			}
+			else if (workload.equals("scan-paged"))
+			{
+				// the whole tree, PAGE_SIZE entries per scan resumed from the token of the last one
+				operations = 0;
+				start = System.nanoTime();
+				String token = null;
+				int read = PAGE_SIZE;
+				while (read == PAGE_SIZE)
+				{
+					read = 0;
+					try (BTFileScan scan = (token == null) ? file.new_scan(null, null) : file.resume_scan(ScanToken.decode(token)))
+					{
+						while (read < PAGE_SIZE && scan.get_next() != null)	read++;
+						token = scan.token().encode();
+					}
+					operations += read;
+				}
+			}
+			else if (workload.startsWith("scan"))
+			{
+				// short: 10 entries per scan, long: a tenth of the tree
+				int length = workload.equals("scan-short") ? 10 : Math.max(1, entries / 10);
+				operations = 0;
+				start = System.nanoTime();
+				for (int i = 0; i < 100; i++)
+				{
+					int low = random.nextInt(Math.max(1, entries - length));
+					operations += scan(file, key(low), key(low + length - 1));
+				}
+			}
+			else
+			{
+				start = System.nanoTime();
+				for (int k : order)
+				{	file.Delete(key(k), rid(k));	}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		file.destroyFile();
+		return (double) elapsed / Math.max(1, operations);
+	}
+
+	/**
+	 * the keys inserted by the workload: 0..entries-1 in order, shuffled or zipfian
+	 */
+	private int[] keys(String workload, Random random)
+	{
+		int[] keys = new int[entries];
+		if (workload.equals("insert-zipf"))
+		{
+			Zipf zipf = new Zipf(entries, ZIPF_SKEW, random);
+			for (int i = 0; i < entries; i++)
+			{	keys[i] = zipf.next();	}
+			return keys;
+		}
+		for (int i = 0; i < entries; i++)
+		{	keys[i] = i;	}
+		if (!workload.equals("insert-sequential") && !workload.equals("insert-split-heavy"))	shuffle(keys, random);
+		return keys;
+	}
+
+	private void insertAll(BTreeFile file, int[] keys)
+	{
+		for (int k : keys)
+		{	file.insert(key(k), rid(k));	}
+	}
+
+	/**
+	 * @return - number of entries read
+	 */
+	private int scan(BTreeFile file, KeyClass low, KeyClass high)
+	{
+		int found = 0;
+		try (BTFileScan scan = file.new_scan(low, high))
+		{
+			while (scan.get_next() != null)
+			{	found++;	}
+		}
+		return found;
+	}
+
+	private KeyClass key(int k)
+	{
+		if (keyType == AttrType.attrInteger)	return new IntegerKey(k);
+		// zero padded so the string order is the integer order
+		String digits = Integer.toString(k);
+		char[] padding = new char[Math.max(0, keySize - digits.length())];
+		Arrays.fill(padding, '0');
+		return new StringKey(new String(padding) + digits);
+	}
+
+	private RID rid(int k)
+	{
+		return new RID(new PageId(k), k);
+	}
+
+	private void shuffle(int[] values, Random random)
+	{
+		for (int i = values.length - 1; i > 0; i--)
+		{
+			int j = random.nextInt(i + 1);
+			int temp = values[i];
+			values[i] = values[j];
+			values[j] = temp;
+		}
+	}
+
+	private void report(String workload, double[] nanosPerOp)
+	{
+		double mean = 0;
+		for (double value : nanosPerOp)
+		{	mean += value / nanosPerOp.length;	}
+		double variance = 0;
+		for (double value : nanosPerOp)
+		{	variance += (value - mean) * (value - mean) / nanosPerOp.length;	}
+		System.out.printf("%s,%s,%d,%d,%d,%.0f,%.0f,%.0f%n", workload,
+				keyType == AttrType.attrInteger ? "integer" : "string", keySize, buffers, entries,
+				mean, Math.sqrt(variance), 1e9 / mean);
+	}
+
+	/**
+	 * zipfian keys in 0..n-1, key 0 the most frequent (Gray et al., "Quickly
+	 * generating billion-record synthetic databases").
+	 */
+	static class Zipf
+	{
+		private int n;
+		private double theta;
+		private double alpha;
+		private double zetan;
+		private double eta;
+		private Random random;
+
+		Zipf(int n, double theta, Random random)
+		{
+			this.n = n;
+			this.theta = theta;
+			this.random = random;
+			double zeta2 = zeta(2, theta);
+			zetan = zeta(n, theta);
+			alpha = 1 / (1 - theta);
+			eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		private static double zeta(int n, double theta)
+		{
+			double sum = 0;
+			for (int i = 1; i <= n; i++)
+			{	sum += 1 / Math.pow(i, theta);	}
+			return sum;
+		}
+
+		int next()
+		{
+			double u = random.nextDouble();
+			double uz = u * zetan;
+			if (uz < 1)	return 0;
+			if (uz < 1 + Math.pow(0.5, theta))	return 1;
+			return Math.min(n - 1, (int) (n * Math.pow(eta * u - eta + 1, alpha)));
+		}
+	}
+}
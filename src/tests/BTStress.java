@@ -0,0 +1,358 @@
+package tests;
+
+import global.AttrType;
+import global.PageId;
+import global.RID;
+import global.SystemDefs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import btree.BTFileScan;
+import btree.BTreeFile;
+import btree.IntegerKey;
+import btree.KeyClass;
+import btree.KeyDataEntry;
+import btree.LatencyHistogram;
+import btree.LeafData;
+
+/**
+ * Headless multi-threaded load generator for BTreeFile. The tree is loaded
+ * with the keys 0..keys-1 shuffled like BTTest.test4, then the threads run a
+ * mix of point reads, inserts, deletes and short scans for the given time.
+ * The tree and the buffer manager are not thread safe, so every operation
+ * holds the lock of the file: the latencies include the time spent waiting
+ * for it, as a client of a shared index would see them.
+ *
+ * A model of the tree (the number of entries of every key and the key of
+ * every record id inserted) is kept under the same lock. Reads, deletes and
+ * scans only start at keys the model holds; the others count as misses.
+ * Delete removes an entry with the key whatever its record id, so the model
+ * cannot tell which record id of a key is gone: at the end every entry of the
+ * tree must carry a record id inserted with its key, no record id may come
+ * twice and every key must have as many entries as in the model.
+ *
+ * usage: BTStress [threads] [seconds] [read,insert,delete,scan percentages]
+ *                 [uniform|zipf|latest] [keys]
+ * e.g.   BTStress 4 30 70,10,10,10 zipf 100000
+ *
+ * @author MaTrix
+ *
+ */
+public class BTStress
+{
+	private static final String[] OPERATIONS = { "read", "insert", "delete", "scan" };
+	private static final int SCAN_LENGTH = 20;
+	private static final double ZIPF_SKEW = 0.99;
+
+	private int threads;
+	private int seconds;
+	private int[] mix = new int[4];
+	private String distribution;
+	private int keys;
+
+	private BTreeFile file;
+	// the number of entries of every key in the tree, guarded by the lock of file
+	private Map<Integer, Integer> model = new HashMap<Integer, Integer>();
+	// the key of every record id inserted by its slot, guarded by the lock of file
+	private Map<Integer, Integer> inserted = new HashMap<Integer, Integer>();
+	private volatile int nextKey; // largest key inserted + 1, for the latest distribution
+	private int nextSlot; // makes the record ids of duplicates different
+
+	private volatile boolean stop;
+	private LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+	private long[] misses = new long[OPERATIONS.length];
+
+	public static void main(String[] args) throws InterruptedException
+	{
+		BTStress stress = new BTStress();
+		stress.threads = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+		stress.seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+		String[] mix = ((args.length > 2) ? args[2] : "70,10,10,10").split(",");
+		for (int i = 0; i < OPERATIONS.length; i++)
+		{	stress.mix[i] = Integer.parseInt(mix[i].trim());	}
+		stress.distribution = (args.length > 3) ? args[3] : "uniform";
+		stress.keys = (args.length > 4) ? Integer.parseInt(args[4]) : 10000;
+		boolean valid = stress.run();
+		Runtime.getRuntime().exit(valid ? 0 : 1);
+	}
+
+	boolean run() throws InterruptedException
+	{
+		String dbpath = new File(System.getProperty("java.io.tmpdir"), "btstress.minibase-db").getPath();
+		new File(dbpath).delete();
+		new SystemDefs(dbpath, Math.max(10000, keys / 10), 1000, "Clock");
+		file = new BTreeFile("STRESS", AttrType.attrInteger, 4, 1);
+		for (int i = 0; i < OPERATIONS.length; i++)
+		{	histograms[i] = new LatencyHistogram();	}
+
+		load();
+		List<Worker> workers = new ArrayList<Worker>();
+		for (int i = 0; i < threads; i++)
+		{
+			Worker worker = new Worker(i);
+			workers.add(worker);
+			worker.start();
+		}
+		long start = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		stop = true;
+		for (Worker worker : workers)
+		{
+			worker.join();
+			for (int i = 0; i < OPERATIONS.length; i++)
+			{	histograms[i].add(worker.histograms[i]);	}
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		report(elapsed);
+		boolean valid = verify();
+		file.destroyFile();
+		new File(dbpath).delete();
+		return valid;
+	}
+
+	private void load()
+	{
+		int[] k = new int[keys];
+		for (int i = 0; i < keys; i++)
+		{	k[i] = i;	}
+		BTDriver.shuffle(k, new Random(keys));
+		for (int key : k)
+		{	insert(key);	}
+		nextKey = keys;
+	}
+
+	/**
+	 * insert the key in the tree and the model, the caller holds the lock
+	 */
+	private void insert(int key)
+	{
+		RID rid = new RID(new PageId(key), nextSlot++);
+		file.insert(new IntegerKey(key), rid);
+		model.put(key, model.containsKey(key) ? model.get(key) + 1 : 1);
+		inserted.put(rid.slotNo, key);
+		nextKey = Math.max(nextKey, key + 1);
+	}
+
+	private class Worker extends Thread
+	{
+		private Random random;
+		private BTBenchmark.Zipf zipf;
+		private LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+
+		Worker(int number)
+		{
+			random = new Random(number);
+			zipf = new BTBenchmark.Zipf(keys, ZIPF_SKEW, random);
+			for (int i = 0; i < OPERATIONS.length; i++)
+			{	histograms[i] = new LatencyHistogram();	}
+		}
+
+		@Override
+		public void run()
+		{
+			int total = mix[0] + mix[1] + mix[2] + mix[3];
+			while (!stop)
+			{
+				int choice = random.nextInt(total);
+				int operation = 0;
+				while (choice >= mix[operation])
+				{	choice -= mix[operation++];	}
+				int key = nextKey();
+				long start = System.nanoTime();
+				boolean hit;
+				synchronized (file)
+				{	hit = execute(operation, key);	}
+				histograms[operation].record(System.nanoTime() - start);
+				if (!hit)
+				{
+					synchronized (misses)
+					{	misses[operation]++;	}
+				}
+			}
+		}
+
+		private int nextKey()
+		{
+			if (distribution.equals("zipf"))
+			{
+				// spread the hot keys over the key space instead of the smallest keys
+				return (int) ((zipf.next() * 2654435761L) % keys);
+			}
+			if (distribution.equals("latest"))	return Math.max(0, nextKey - 1 - zipf.next());
+			return random.nextInt(keys);
+		}
+
+		/**
+		 * @return - false if the operation found nothing to work on
+		 */
+		private boolean execute(int operation, int key)
+		{
+			boolean present = model.containsKey(key) && model.get(key) > 0;
+			switch (operation)
+			{
+			case 0:
+				if (!present)	return false;
+				scan(new IntegerKey(key), new IntegerKey(key), 1);
+				return true;
+			case 1:
+				insert(distribution.equals("latest") ? nextKey : key);
+				return true;
+			case 2:
+				if (!present)	return false;
+				// Delete goes by the key, the record id is only a placeholder
+				if (!file.Delete(new IntegerKey(key), new RID(new PageId(key), -1)))	return false;
+				model.put(key, model.get(key) - 1);
+				return true;
+			default:
+				if (!present)	return false;
+				scan(new IntegerKey(key), null, SCAN_LENGTH);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * read at most limit entries from low
+	 * @return - the entries read
+	 */
+	private List<KeyDataEntry> scan(KeyClass low, KeyClass high, int limit)
+	{
+		List<KeyDataEntry> found = new ArrayList<KeyDataEntry>();
+		try (BTFileScan scan = file.new_scan(low, high))
+		{
+			KeyDataEntry entry;
+			while (found.size() < limit && (entry = scan.get_next()) != null)
+			{	found.add(entry);	}
+		}
+		return found;
+	}
+
+	private void report(double elapsed)
+	{
+		long operations = 0;
+		for (LatencyHistogram histogram : histograms)
+		{	operations += histogram.count();	}
+		System.out.printf("threads=%d mix=%d/%d/%d/%d distribution=%s keys=%d seconds=%.1f%n", threads,
+				mix[0], mix[1], mix[2], mix[3], distribution, keys, elapsed);
+		System.out.printf("throughput: %.0f ops/s%n", operations / elapsed);
+		System.out.println("operation,count,misses,p50 us,p99 us,p999 us,max us");
+		for (int i = 0; i < OPERATIONS.length; i++)
+		{
+			LatencyHistogram histogram = histograms[i];
+			System.out.printf("%s,%d,%d,%.1f,%.1f,%.1f,%.1f%n", OPERATIONS[i], histogram.count(), misses[i],
+					histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3,
+					histogram.percentile(0.999) / 1e3, histogram.max() / 1e3);
+		}
+	}
+
+	/**
+	 * the invariants of the tree after the run: a full scan returns the keys
+	 * in order, exactly the keys of the model, each entry with a record id
+	 * inserted with its key and no record id twice, and as many entries as the
+	 * header page and the index aggregates count; BTreeVerifier finds nothing
+	 * wrong with the pages.
+	 */
+	private boolean verify()
+	{
+		boolean valid = true;
+		List<KeyDataEntry> entriesFound = scan(null, null, Integer.MAX_VALUE);
+		List<Integer> found = new ArrayList<Integer>();
+		Set<Integer> slots = new HashSet<Integer>();
+		for (KeyDataEntry entry : entriesFound)
+		{
+			int key = ((IntegerKey) entry.key).getKey();
+			RID rid = ((LeafData) entry.data).getData();
+			found.add(key);
+			if (rid.pageNo.pid != key || !inserted.containsKey(rid.slotNo) || inserted.get(rid.slotNo) != key)
+			{
+				System.out.println("FAIL: key " + key + " has the record id [" + rid.pageNo.pid + ", " + rid.slotNo
+						+ "], never inserted with it");
+				valid = false;
+			}
+			else if (!slots.add(rid.slotNo))
+			{
+				System.out.println("FAIL: the record id [" + rid.pageNo.pid + ", " + rid.slotNo + "] of key " + key
+						+ " is in the tree twice");
+				valid = false;
+			}
+		}
+		Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		int entries = 0;
+		for (Map.Entry<Integer, Integer> entry : model.entrySet())
+		{
+			if (entry.getValue() == 0)	continue;
+			expected.put(entry.getKey(), entry.getValue());
+			entries += entry.getValue();
+		}
+
+		for (int i = 1; i < found.size(); i++)
+		{
+			if (found.get(i - 1) > found.get(i))
+			{
+				System.out.println("FAIL: keys out of order at " + found.get(i - 1) + ", " + found.get(i));
+				valid = false;
+				break;
+			}
+		}
+		Map<Integer, Integer> counted = new HashMap<Integer, Integer>();
+		for (int key : found)
+		{	counted.put(key, counted.containsKey(key) ? counted.get(key) + 1 : 1);	}
+		if (!counted.equals(expected))
+		{
+			System.out.println("FAIL: the scan returned " + found.size() + " entries, the model has " + entries);
+			valid = false;
+		}
+		if (file.getHeaderPage().getEntryCount() != entries)
+		{
+			System.out.println("FAIL: the header counts " + file.getHeaderPage().getEntryCount()
+					+ " entries, the model has " + entries);
+			valid = false;
+		}
+		if (file.count(null, null) != entries)
+		{
+			System.out.println("FAIL: the index counts " + file.count(null, null) + " entries, the model has " + entries);
+			valid = false;
+		}
+		if (!found.isEmpty())
+		{
+			int middle = found.get(found.size() / 2);
+			int below = 0;
+			for (int key : found)
+			{	if (key <= middle)	below++;	}
+			if (file.count(null, new IntegerKey(middle)) != below)
+			{
+				System.out.println("FAIL: the index counts " + file.count(null, new IntegerKey(middle))
+						+ " entries up to " + middle + ", the scan " + below);
+				valid = false;
+			}
+			if (((IntegerKey) file.min()).getKey() != found.get(0)
+					|| ((IntegerKey) file.max()).getKey() != found.get(found.size() - 1))
+			{
+				System.out.println("FAIL: min and max of the index differ from the scan");
+				valid = false;
+			}
+			int rank = file.rank(new IntegerKey(middle));
+			KeyDataEntry selected = file.select(rank);
+			if (found.get(rank) != middle || selected == null || ((IntegerKey) selected.key).getKey() != middle)
+			{
+				System.out.println("FAIL: the index ranks " + middle + " at " + rank + ", not its position in the scan");
+				valid = false;
+			}
+		}
+		for (String problem : file.verify())
+		{
+			System.out.println("FAIL: " + problem);
+			valid = false;
+		}
+		System.out.println(valid ? "invariants: OK" : "invariants: FAILED");
+		return valid;
+	}
+}
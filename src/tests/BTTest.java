@@ -397,6 +397,24 @@ class BTDriver  implements GlobalConst
 
 
 
+  /**
+   * shuffle the keys with two passes of random swaps (test3-test5 and BTStress)
+   */
+  static void shuffle(int[] k, Random ran) {
+    int n=k.length;
+    int random;
+    int tmp;
+    for(int pass=0;pass<2;pass++) {
+      for(int i=0;i<n;i++) {
+        random=(ran.nextInt())%n;
+        if (random<0) random=-random;
+        tmp=k[i];
+        k[i]=k[random];
+        k[random]=tmp;
+      }
+    }
+  }
+
   void test3(int n) 
      throws Exception
   {
@@ -410,23 +428,7 @@ class BTDriver  implements GlobalConst
           k[i]=i;
        }
        Random ran=new Random();
-       int random;
-       int tmp;
-       for(int i=0;i<n;i++) {
-
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
+       shuffle(k, ran);
   
 
        KeyClass key;
@@ -462,22 +464,7 @@ class BTDriver  implements GlobalConst
           k[i]=i;
        }
        Random ran=new Random();
-       int random;
-       int tmp;
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
+       shuffle(k, ran);
   
 
        KeyClass key;
@@ -492,20 +479,7 @@ class BTDriver  implements GlobalConst
 
        }
 
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
+       shuffle(k, ran);
   
        for(int i=0;i<m;i++) {
           key=new IntegerKey(k[i]);
@@ -545,22 +519,7 @@ class BTDriver  implements GlobalConst
        }
 
        Random ran=new Random();
-       int random;
-       int tmp;
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
+       shuffle(k, ran);
   
 
        KeyClass key;
@@ -575,20 +534,7 @@ class BTDriver  implements GlobalConst
 
        }
 
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
-       for(int i=0;i<n;i++) {
-         random=(ran.nextInt())%n;
-         if (random<0) random=-random;
-         tmp=k[i];
-         k[i]=k[random];
-         k[random]=tmp;
-       }
+       shuffle(k, ran);
   
        for(int i=0;i<m;i++) {
           key=new StringKey("**"+k[i]);